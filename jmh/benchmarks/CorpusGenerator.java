@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+//Deterministic generator of blocklist corpora in hosts, adblock, dnsmasq and plain domain formats
+//The clustering ratio is the fraction of entries that are subdomains of a small pool of parents,
+//which is what makes wildcardOptimizer() find wildcards
+public final class CorpusGenerator {
+
+    public enum Format { HOSTS, ADBLOCK, DNSMASQ, DOMAINS, MIXED }
+
+    private static final String[] tlds = {"com", "net", "org", "io", "de", "co.uk", "info", "xyz", "ru", "cn", "com.br", "jp"};
+    private static final String[] words = {"ads", "track", "metrics", "cdn", "api", "pixel", "stats", "log", "img", "srv",
+            "tag", "sync", "beacon", "click", "go", "m", "www", "static", "media", "analytics", "telemetry", "collect"};
+
+    private final SplittableRandom random;
+    private final double clusteringRatio;
+    private final String[] clusterParents;
+
+    public CorpusGenerator(long seed, double clusteringRatio) {
+        this.random = new SplittableRandom(seed);
+        this.clusteringRatio = clusteringRatio;
+        this.clusterParents = new String[2000];
+        for (int count = 0; count < clusterParents.length; count++) {
+            clusterParents[count] = randomLabel() + count + "." + tlds[random.nextInt(tlds.length)];
+        }
+    }
+
+    public String nextDomain() {
+        if (random.nextDouble() < clusteringRatio) {
+            //Skewed towards the first parents so some of them pass the wildcard threshold
+            String parent = clusterParents[(int) (clusterParents.length * Math.pow(random.nextDouble(), 3))];
+            StringBuilder domain = new StringBuilder();
+            for (int depth = 1 + random.nextInt(3); depth > 0; depth--) {
+                domain.append(randomLabel()).append(random.nextInt(1000)).append('.');
+            }
+            return domain.append(parent).toString();
+        }
+        return randomLabel() + Integer.toString(random.nextInt(Integer.MAX_VALUE), 36) + "." + tlds[random.nextInt(tlds.length)];
+    }
+
+    public String nextLine(Format format) {
+        int noise = random.nextInt(100);
+        if (noise < 2) {
+            return "# " + nextDomain();
+        } else if (noise < 3) {
+            return "";
+        }
+        String domain = nextDomain();
+        if (noise < 5) {
+            domain = domain.toUpperCase(Locale.ROOT);
+        }
+        switch (format == Format.MIXED ? Format.values()[random.nextInt(4)] : format) {
+            case HOSTS:
+                return (noise < 50 ? "0.0.0.0 " : "127.0.0.1\t") + domain + (noise > 95 ? " #comment" : "");
+            case ADBLOCK:
+                return "||" + domain + (noise < 50 ? "^" : "^$third-party");
+            case DNSMASQ:
+                return "address=/" + domain + "/#";
+            default:
+                return domain;
+        }
+    }
+
+    public ArrayList<String> lines(int count, Format format) {
+        ArrayList<String> lines = new ArrayList<>(count);
+        for (int line = 0; line < count; line++) {
+            lines.add(nextLine(format));
+        }
+        return lines;
+    }
+
+    public ArrayList<String> domains(int count) {
+        ArrayList<String> domains = new ArrayList<>(count);
+        for (int domain = 0; domain < count; domain++) {
+            domains.add(nextDomain());
+        }
+        return domains;
+    }
+
+    public void write(Path file, int count, Format format) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("# Synthetic corpus, " + count + " entries, " + format.name().toLowerCase(Locale.ROOT) + "\n");
+            for (int line = 0; line < count; line++) {
+                writer.write(nextLine(format));
+                writer.write('\n');
+            }
+        }
+    }
+
+    private String randomLabel() {
+        return words[random.nextInt(words.length)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Arguments: output file, entries, [clustering ratio, default 0.3], [hosts|adblock|dnsmasq|domains|mixed], [seed]");
+            System.exit(1);
+        }
+        int entries = Integer.parseInt(args[1]);
+        double clustering = args.length > 2 ? Double.parseDouble(args[2]) : 0.3;
+        Format format = args.length > 3 ? Format.valueOf(args[3].toUpperCase(Locale.ROOT)) : Format.MIXED;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+        new CorpusGenerator(seed, clustering).write(Paths.get(args[0]), entries, format);
+        System.out.println("Wrote " + entries + " entries to " + args[0]);
+    }
+}
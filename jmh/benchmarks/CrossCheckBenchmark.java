@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+//Pairwise source overlap counting behind the cross-check output
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class CrossCheckBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"50"})
+    public int sources;
+
+    //Chance that a domain is also listed by each further source
+    @Param({"0.1"})
+    public double overlap;
+
+    private int[][] sourceDomains;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        int[] counts = new int[sources];
+        int[][] lists = new int[sources][];
+        for (int source = 0; source < sources; source++) {
+            lists[source] = new int[Math.max(16, entries / sources * 2)];
+        }
+        int[] order = new int[sources];
+        for (int source = 0; source < sources; source++) {
+            order[source] = source;
+        }
+        for (int domain = 0; domain < entries; domain++) {
+            //Partial shuffle, so a domain is never given to the same source twice
+            int picked = 0;
+            do {
+                int swap = picked + random.nextInt(sources - picked);
+                int source = order[swap];
+                order[swap] = order[picked];
+                order[picked++] = source;
+                if (counts[source] == lists[source].length) {
+                    lists[source] = Arrays.copyOf(lists[source], lists[source].length * 2);
+                }
+                lists[source][counts[source]++] = domain;
+            } while (picked < sources && random.nextDouble() < overlap);
+        }
+        sourceDomains = new int[sources][];
+        for (int source = 0; source < sources; source++) {
+            sourceDomains[source] = Arrays.copyOf(lists[source], counts[source]);
+            Arrays.sort(sourceDomains[source]);
+        }
+    }
+
+    @Benchmark
+    public int[][] countOverlaps() throws Throwable {
+        return Targets.countOverlaps(sourceDomains, entries);
+    }
+
+    @Benchmark
+    public int[][] estimateOverlaps() throws Throwable {
+        return Targets.estimateOverlaps(sourceDomains);
+    }
+
+}
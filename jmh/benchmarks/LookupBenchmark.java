@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Daemon lookups against a built snapshot, both in process and through the HTTP endpoint
+//Queries are a mix of listed domains, subdomains of them and unlisted domains, run with -t N to measure concurrent clients
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class LookupBenchmark {
+
+    private static final int SOURCES = 8;
+    private static final int QUERIES = 4096;
+
+    @Param({"100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"0.3"})
+    public double clustering;
+
+    private File directory;
+    private Object snapshot;
+    private HttpServer server;
+    private String[] queries;
+    private URI[] uris;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        //Sources go straight into the cache under the names the tool would download them to
+        directory = Files.createTempDirectory("lookup").toFile();
+        File cache = new File(directory, "cache");
+        cache.mkdirs();
+        ArrayList<String> config = new ArrayList<>();
+        for (int source = 0; source < SOURCES; source++) {
+            String url = "https://example.org/list-" + source + ".txt";
+            String name = HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(url.getBytes(StandardCharsets.UTF_8)));
+            new CorpusGenerator(42 + source, clustering).write(new File(cache, name + ".txt").toPath(), entries / SOURCES, CorpusGenerator.Format.HOSTS);
+            config.add(url + ",GPL-3.0;");
+        }
+        Files.write(new File(directory, "blocklists.txt").toPath(), config);
+        Files.write(new File(directory, "allowlist.txt").toPath(), List.of("example.org"));
+        Targets.setOption("CACHE_ONLY", true);
+        String output = new File(directory, "hosts").getPath();
+        snapshot = Targets.build(new String[]{new File(directory, "allowlist.txt").getPath(), new File(directory, "blocklists.txt").getPath(), output, cache.getPath()}, null);
+        Targets.publish(snapshot);
+        server = Targets.startServer(0);
+
+        List<String> listed = new ArrayList<>();
+        try (Stream<String> lines = Files.lines(new File(output + "-domains").toPath())) {
+            lines.filter(line -> !line.startsWith("#") && !line.isEmpty()).forEach(listed::add);
+        }
+        Random random = new Random(42);
+        queries = new String[QUERIES];
+        for (int query = 0; query < QUERIES; query++) {
+            String domain = listed.get(random.nextInt(listed.size()));
+            switch (query % 3) {
+                case 0: queries[query] = domain; break;
+                case 1: queries[query] = "sub" + query + "." + domain; break;
+                default: queries[query] = "unlisted" + query + ".example.net"; break;
+            }
+        }
+        uris = new URI[QUERIES];
+        String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/lookup?domain=";
+        for (int query = 0; query < QUERIES; query++) {
+            uris[query] = URI.create(base + URLEncoder.encode(queries[query], StandardCharsets.UTF_8));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.stop(0);
+        try (Stream<java.nio.file.Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        private int next = 0;
+
+        private int nextQuery() {
+            next = (next + 1) & (QUERIES - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public String lookup(Client client) throws Throwable {
+        return Targets.lookup(snapshot, queries[client.nextQuery()]);
+    }
+
+    @Benchmark
+    public String endpoint(Client client) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uris[client.nextQuery()]).GET().build();
+        return client.client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+//Parsing of single lines through getDomainsFromString()
+//The lines are held in memory, so sizes stop at 1M, ParseFileBenchmark covers larger ones
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class ParseBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    @Param({"0.3"})
+    public double clustering;
+
+    @Param({"MIXED"})
+    public CorpusGenerator.Format format;
+
+    private ArrayList<String> lines;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lines = new CorpusGenerator(42, clustering).lines(entries, format);
+    }
+
+    @Benchmark
+    public void parseLines(Blackhole blackhole) throws Throwable {
+        for (String line : lines) {
+            blackhole.consume(Targets.getDomainsFromString(line));
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//Sorting of store IDs by domain, as done for the plain and wildcard outputs
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class SortBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"0.3"})
+    public double clustering;
+
+    private Object store;
+    private int[] unsorted;
+    private int[] ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Object[] built = Targets.buildStore(new CorpusGenerator(42, clustering).domains(entries), entries);
+        store = built[0];
+        unsorted = (int[]) built[1];
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        ids = unsorted.clone();
+    }
+
+    @Benchmark
+    public int[] sort() throws Throwable {
+        Targets.sort(store, ids);
+        return ids;
+    }
+
+}
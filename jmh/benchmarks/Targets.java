@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+
+//JMH does not allow benchmarks in the default package, and classes in a package cannot import from it
+//So the benchmarks reach the tool through method handles, resolved once and typed so the JIT can inline them
+final class Targets {
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+    private static final Class<?> main = load("Main");
+    private static final Class<?> domainStore = load("DomainStore");
+    private static final Class<?> snapshot = load("BlocklistSnapshot");
+    private static final Class<?> daemon = load("Daemon");
+
+    private static final MethodHandle getDomainsFromString = find(main, "getDomainsFromString", Set.class, String.class);
+    private static final MethodHandle readHostsFileIntoArray = find(main, "readHostsFileIntoArray", domainStore, File.class);
+    private static final MethodHandle wildcardOptimizer = find(main, "wildcardOptimizer", int[].class, domainStore, int[].class);
+    private static final MethodHandle countOverlaps = find(main, "countOverlaps", int[][].class, int[][].class, int.class);
+    private static final MethodHandle estimateOverlaps = find(main, "estimateOverlaps", int[][].class, int[][].class);
+    private static final MethodHandle writeOut = find(main, "writeOut", boolean.class, ArrayList.class, domainStore, int[].class, int.class, Map.class);
+    private static final MethodHandle newDomainStore = findConstructor(domainStore, int.class);
+    private static final MethodHandle intern = findVirtual(domainStore, "intern", int.class, String.class);
+    private static final MethodHandle size = findVirtual(domainStore, "size", int.class);
+    private static final MethodHandle sort = findVirtual(domainStore, "sort", void.class, int[].class);
+    private static final MethodHandle build = find(main, "build", snapshot, String[].class, snapshot);
+    private static final MethodHandle publish = find(daemon, "publish", void.class, snapshot);
+    private static final MethodHandle startServer = find(daemon, "startServer", HttpServer.class, int.class);
+    private static final MethodHandle lookupDomain = findVirtual(snapshot, "lookup", load("BlocklistSnapshot$Result"), String.class);
+    private static final MethodHandle toJson = findVirtual(load("BlocklistSnapshot$Result"), "toJson", String.class);
+
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Set<String> getDomainsFromString(String input) throws Throwable {
+        return (Set<String>) getDomainsFromString.invokeExact(input);
+    }
+
+    static Object readHostsFileIntoArray(File in) throws Throwable {
+        return readHostsFileIntoArray.invokeExact(in);
+    }
+
+    static int[] wildcardOptimizer(Object store, int[] domains) throws Throwable {
+        return (int[]) wildcardOptimizer.invokeExact(store, domains);
+    }
+
+    static int[][] countOverlaps(int[][] sourceDomains, int domainCount) throws Throwable {
+        return (int[][]) countOverlaps.invokeExact(sourceDomains, domainCount);
+    }
+
+    static int[][] estimateOverlaps(int[][] sourceDomains) throws Throwable {
+        return (int[][]) estimateOverlaps.invokeExact(sourceDomains);
+    }
+
+    static boolean writeOut(ArrayList<String> blocklists, Object store, int[] domains, int trueCount, Map<File, ?> outputs) throws Throwable {
+        return (boolean) writeOut.invokeExact(blocklists, store, domains, trueCount, (Map) outputs);
+    }
+
+    static Object newDomainStore(int expectedSize) throws Throwable {
+        return newDomainStore.invokeExact(expectedSize);
+    }
+
+    static int intern(Object store, String domain) throws Throwable {
+        return (int) intern.invokeExact(store, domain);
+    }
+
+    static int size(Object store) throws Throwable {
+        return (int) size.invokeExact(store);
+    }
+
+    static void sort(Object store, int[] ids) throws Throwable {
+        sort.invokeExact(store, ids);
+    }
+
+    //Runs the whole pipeline on the given arguments, as main() does without options
+    static Object build(String[] args, Object previous) throws Throwable {
+        return build.invokeExact(args, previous);
+    }
+
+    static void publish(Object snapshot) throws Throwable {
+        publish.invokeExact(snapshot);
+    }
+
+    static HttpServer startServer(int port) throws Throwable {
+        return (HttpServer) startServer.invokeExact(port);
+    }
+
+    //Same work as the endpoint does for each request, minus the HTTP handling
+    static String lookup(Object snapshot, String domain) throws Throwable {
+        return (String) toJson.invokeExact(lookupDomain.invokeExact(snapshot, domain));
+    }
+
+    static Object outputFormat(String name) throws Throwable {
+        return load("OutputFormat").getMethod("fromName", String.class).invoke(null, name);
+    }
+
+    static void setOption(String name, Object value) throws Throwable {
+        main.getField(name).set(null, value);
+    }
+
+    //Builds a store holding the given domains, returning it along with all of its IDs
+    static Object[] buildStore(Iterable<String> domains, int expectedSize) throws Throwable {
+        Object store = newDomainStore(expectedSize);
+        for (String domain : domains) {
+            intern(store, domain);
+        }
+        int[] ids = new int[size(store)];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = id;
+        }
+        return new Object[]{store, ids};
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Handles are converted to Object for any default package type so callers can use invokeExact()
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int parameter = 0; parameter < type.parameterCount(); parameter++) {
+            if (type.parameterType(parameter).getPackageName().isEmpty() && !type.parameterType(parameter).isPrimitive() && !type.parameterType(parameter).isArray()) {
+                type = type.changeParameterType(parameter, Object.class);
+            }
+        }
+        if (type.returnType().getPackageName().isEmpty() && !type.returnType().isPrimitive() && !type.returnType().isArray()) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static MethodHandle find(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return erase(lookup.findStatic(owner, name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return erase(lookup.findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findConstructor(Class<?> owner, Class<?>... parameterTypes) {
+        try {
+            return erase(lookup.findConstructor(owner, MethodType.methodType(void.class, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+//Subdomain counting and wildcard replacement over a store of already merged domains
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class WildcardBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"0.1", "0.3", "0.7"})
+    public double clustering;
+
+    private ArrayList<String> generated;
+    private Object store;
+    private int[] domains;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        generated = new CorpusGenerator(42, clustering).domains(entries);
+    }
+
+    //wildcardOptimizer() interns the wildcards it creates, so each run starts from a fresh store
+    @Setup(Level.Invocation)
+    public void build() throws Throwable {
+        Object[] built = Targets.buildStore(generated, entries);
+        store = built[0];
+        domains = (int[]) built[1];
+    }
+
+    @Benchmark
+    public int[] wildcardOptimizer() throws Throwable {
+        return Targets.wildcardOptimizer(store, domains);
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+//Writing a sorted list in the hosts, domains and dnsmasq formats in one pass
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class WriteOutBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"0.3"})
+    public double clustering;
+
+    private Object store;
+    private int[] ids;
+    private File directory;
+    private LinkedHashMap<File, Object> outputs;
+    private final ArrayList<String> blocklists = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Object[] built = Targets.buildStore(new CorpusGenerator(42, clustering).domains(entries), entries);
+        store = built[0];
+        ids = (int[]) built[1];
+        Targets.sort(store, ids);
+        blocklists.add("https://example.org/list.txt,GPL-3.0"); //Same format as the config, URL then license
+        directory = Files.createTempDirectory("writeout").toFile();
+        outputs = new LinkedHashMap<>();
+        outputs.put(new File(directory, "hosts"), Targets.outputFormat("hosts"));
+        outputs.put(new File(directory, "hosts-domains"), Targets.outputFormat("domains"));
+        outputs.put(new File(directory, "hosts-dnsmasq"), Targets.outputFormat("dnsmasq"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (Stream<java.nio.file.Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public boolean writeOut() throws Throwable {
+        return Targets.writeOut(blocklists, store, ids, ids.length, outputs);
+    }
+
+}
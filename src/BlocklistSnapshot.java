@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.time.Instant;
+import java.util.*;
+
+//Everything one build produced that lookups need, never modified once built so any number of threads can read it
+//The daemon swaps in a new one after each build, readers keep using whichever one they started with
+public final class BlocklistSnapshot {
+
+    private final long generation;
+    private final String built = Instant.now().toString();
+    private final String inputs;
+    private final DomainStore store;
+    private final BitSet blocked = new BitSet(); //IDs in the wildcard outputs, including the *. entries
+    private final int resultCount;
+    private final int wildcardCount;
+    private final LinkedHashMap<String, int[]> sources; //Sorted store IDs of each source in config order
+    private final Set<String> allowlist;
+    private final DomainSuffixTrie allowlistSuffixes;
+
+    public BlocklistSnapshot(long generation, String inputs, DomainStore store, int resultCount, int[] wildcardIds, LinkedHashMap<String, int[]> sources, Set<String> allowlist, DomainSuffixTrie allowlistSuffixes) {
+        this.generation = generation;
+        this.inputs = inputs;
+        this.store = store;
+        this.resultCount = resultCount;
+        this.wildcardCount = wildcardIds.length;
+        this.sources = sources;
+        this.allowlist = allowlist;
+        this.allowlistSuffixes = allowlistSuffixes;
+        for (int id : wildcardIds) {
+            blocked.set(id);
+        }
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getInputs() {
+        return inputs;
+    }
+
+    //Answers as the wildcard outputs would, so a domain below a *. entry is blocked even if it is allowlisted
+    public Result lookup(String domain) {
+        domain = domain.trim().toLowerCase(Locale.ROOT);
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        Result result = new Result(domain);
+        result.allowlisted = allowlist.contains(domain) || allowlistSuffixes.containsParentOf(domain);
+        int id = store.find(domain);
+        if (id >= 0) {
+            for (Map.Entry<String, int[]> source : sources.entrySet()) {
+                if (Arrays.binarySearch(source.getValue(), id) >= 0) {
+                    result.sources.add(source.getKey());
+                }
+            }
+            result.blocked = blocked.get(id);
+        }
+        for (int dot = domain.indexOf('.'); dot >= 0 && result.wildcard == null; dot = domain.indexOf('.', dot + 1)) {
+            int parent = store.find("*." + domain.substring(dot + 1));
+            if (parent >= 0 && blocked.get(parent)) {
+                result.wildcard = store.getString(parent);
+                result.blocked = true;
+            }
+        }
+        return result;
+    }
+
+    public ArrayList<String> toJson() {
+        ArrayList<String> out = new ArrayList<>();
+        out.add("{");
+        out.add("  \"generation\": " + generation + ",");
+        out.add("  \"built\": " + RunReport.jsonString(built) + ",");
+        out.add("  \"sources\": " + sources.size() + ",");
+        out.add("  \"domains\": " + resultCount + ",");
+        out.add("  \"wildcard_entries\": " + wildcardCount);
+        out.add("}");
+        return out;
+    }
+
+    public final class Result {
+        public final String domain;
+        public boolean blocked = false;
+        public boolean allowlisted = false;
+        public String wildcard = null; //The *. entry blocking it, if any
+        public final ArrayList<String> sources = new ArrayList<>(); //Sources listing the domain itself
+
+        private Result(String domain) {
+            this.domain = domain;
+        }
+
+        public String toJson() {
+            StringBuilder out = new StringBuilder("{\"domain\": ").append(RunReport.jsonString(domain))
+                    .append(", \"blocked\": ").append(blocked)
+                    .append(", \"allowlisted\": ").append(allowlisted)
+                    .append(", \"wildcard\": ").append(RunReport.jsonString(wildcard))
+                    .append(", \"generation\": ").append(generation)
+                    .append(", \"sources\": [");
+            for (int source = 0; source < sources.size(); source++) {
+                out.append(source > 0 ? ", " : "").append(RunReport.jsonString(sources.get(source)));
+            }
+            return out.append("]}").toString();
+        }
+    }
+
+}
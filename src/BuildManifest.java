@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Version manifest written next to the outputs
+//Clients on the previous version can fetch the diffs listed in it instead of the full outputs, anyone else compares hashes
+public final class BuildManifest {
+
+    private static final Pattern versionPattern = Pattern.compile("^\\s*\"version\": (\\d+),?$", Pattern.MULTILINE);
+
+    private final long version;
+    private final long previousVersion;
+    private final String created = Instant.now().toString();
+    private final ArrayList<String> outputs = new ArrayList<>();
+    private final ArrayList<String> diffs = new ArrayList<>();
+
+    public BuildManifest(File previous) {
+        previousVersion = readVersion(previous);
+        version = previousVersion + 1;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getPreviousVersion() {
+        return previousVersion;
+    }
+
+    public void addOutput(File output) {
+        if (output.exists()) {
+            outputs.add("{\"file\": " + RunReport.jsonString(output.getName()) + ", \"bytes\": " + output.length() + ", \"sha256\": " + RunReport.jsonString(hash(output)) + "}");
+        }
+    }
+
+    public void addDiff(File of, OutputDiff diff) {
+        diffs.add("{\"file\": " + RunReport.jsonString(diff.getFile().getName())
+                + ", \"of\": " + RunReport.jsonString(of.getName())
+                + ", \"from_version\": " + diff.getFromVersion()
+                + ", \"to_version\": " + diff.getToVersion()
+                + ", \"added\": " + diff.getAdded()
+                + ", \"removed\": " + diff.getRemoved()
+                + ", \"bytes\": " + diff.getFile().length()
+                + ", \"sha256\": " + RunReport.jsonString(hash(diff.getFile())) + "}");
+    }
+
+    public ArrayList<String> toJson() {
+        ArrayList<String> out = new ArrayList<>();
+        out.add("{");
+        out.add("  \"version\": " + version + ",");
+        out.add("  \"previous_version\": " + previousVersion + ",");
+        out.add("  \"created\": " + RunReport.jsonString(created) + ",");
+        addArray(out, "outputs", outputs, ",");
+        addArray(out, "diffs", diffs, "");
+        out.add("}");
+        return out;
+    }
+
+    //0 if there is no earlier manifest
+    public static long readVersion(File manifest) {
+        if (!manifest.exists()) {
+            return 0;
+        }
+        try {
+            Matcher matcher = versionPattern.matcher(new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8));
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    private static void addArray(ArrayList<String> out, String name, ArrayList<String> entries, String separator) {
+        out.add("  \"" + name + "\": [");
+        for (int entry = 0; entry < entries.size(); entry++) {
+            out.add("    " + entries.get(entry) + (entry + 1 < entries.size() ? "," : ""));
+        }
+        out.add("  ]" + separator);
+    }
+
+    private static String hash(File file) {
+        try {
+            return Main.byteArrayToHexString(ParsedDomainCache.hashFile(file));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+}
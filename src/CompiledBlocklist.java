@@ -0,0 +1,389 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+//Binary blocklist that can be memory mapped and queried in place, so a resolver does not have to parse a text list at startup
+//Exact domains and the parents of *. wildcards are kept in two sorted sections of UTF-8 keys
+//Each section is front coded with a full key every BLOCK_SIZE entries, found by binary search over an index of those restart points
+//Format, big endian: magic, version, created, block size, then count, block count and data length of both sections,
+//followed by each section's block offsets and data, and finally the CRC32C of everything before it
+//Entries are varints of the prefix shared with the previous entry and of the suffix length, then the suffix
+public final class CompiledBlocklist {
+
+    public static final int MAGIC = 0x53484d42; //SHMB
+    public static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 16;
+    private static final int HEADER_SIZE = 48;
+    private static final byte[] wildcardPrefix = "*.".getBytes(StandardCharsets.UTF_8);
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final ByteBuffer file;
+    private final long created;
+    private final Section exact;
+    private final Section wildcards;
+
+    private CompiledBlocklist(ByteBuffer file) throws IOException {
+        this.file = file;
+        if (file.limit() < HEADER_SIZE + 4 || file.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled blocklist");
+        }
+        if (file.getInt(4) != VERSION) {
+            throw new IOException("Unsupported compiled blocklist version " + file.getInt(4));
+        }
+        created = file.getLong(8);
+        if (file.getInt(16) != BLOCK_SIZE) {
+            throw new IOException("Unsupported block size " + file.getInt(16));
+        }
+        exact = new Section(file.getInt(20), file.getInt(24), file.getInt(28), HEADER_SIZE);
+        wildcards = new Section(file.getInt(32), file.getInt(36), file.getInt(40), exact.end);
+        if (wildcards.end != file.limit() - 4) {
+            throw new IOException("Compiled blocklist is truncated");
+        }
+    }
+
+    //Maps the file and verifies its checksum
+    public static CompiledBlocklist open(Path path) throws IOException {
+        return open(path, true);
+    }
+
+    //Skipping verification avoids reading the whole file up front, only the pages touched by lookups get loaded
+    public static CompiledBlocklist open(Path path, boolean verify) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Compiled blocklist too large");
+            }
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CompiledBlocklist blocklist = new CompiledBlocklist(file);
+            if (verify) {
+                CRC32C checksum = new CRC32C();
+                checksum.update(file.duplicate().limit(file.limit() - 4));
+                if ((int) checksum.getValue() != file.getInt(file.limit() - 4)) {
+                    throw new IOException("Compiled blocklist checksum mismatch");
+                }
+            }
+            return blocklist;
+        }
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public int getExactCount() {
+        return exact.count;
+    }
+
+    public int getWildcardCount() {
+        return wildcards.count;
+    }
+
+    //Case insensitive and a trailing dot is ignored, does not allocate once the calling thread has made a lookup of similar length
+    public boolean isBlocked(CharSequence domain) {
+        int length = domain.length();
+        byte[] bytes = scratch.get();
+        if (bytes.length < length * 3) {
+            bytes = new byte[length * 3];
+            scratch.set(bytes);
+        }
+        int encoded = 0;
+        for (int position = 0; position < length; position++) {
+            char c = domain.charAt(position);
+            if (c < 0x80) {
+                bytes[encoded++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[encoded++] = (byte) (0xC0 | (c >> 6));
+                bytes[encoded++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && position + 1 < length && Character.isLowSurrogate(domain.charAt(position + 1))) {
+                int codePoint = Character.toCodePoint(c, domain.charAt(++position));
+                bytes[encoded++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[encoded++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[encoded++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[encoded++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                bytes[encoded++] = (byte) (0xE0 | (c >> 12));
+                bytes[encoded++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[encoded++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return isBlocked(bytes, 0, encoded);
+    }
+
+    //Domain as UTF-8, never allocates
+    public boolean isBlocked(byte[] domain, int offset, int length) {
+        if (length > 0 && domain[offset + length - 1] == '.') {
+            length--;
+        }
+        if (length == 0) {
+            return false;
+        }
+        if (exact.contains(domain, offset, length)) {
+            return true;
+        }
+        //Any parent listed as a wildcard
+        int end = offset + length;
+        for (int position = offset; position < end - 1; position++) {
+            if (domain[position] == '.' && wildcards.contains(domain, position + 1, end - position - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Section {
+        private final int count;
+        private final int blockCount;
+        private final int index;
+        private final int data;
+        private final int end;
+
+        private Section(int count, int blockCount, int dataLength, int start) throws IOException {
+            this.count = count;
+            this.blockCount = blockCount;
+            this.index = start;
+            this.data = start + blockCount * 4;
+            this.end = data + dataLength;
+            if (count < 0 || blockCount != (count + BLOCK_SIZE - 1) / BLOCK_SIZE || dataLength < 0 || end > file.limit() - 4) {
+                throw new IOException("Compiled blocklist header is invalid");
+            }
+        }
+
+        private boolean contains(byte[] key, int offset, int length) {
+            //Last block starting at or before the key
+            int low = 0;
+            int high = blockCount - 1;
+            int block = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int position = data + file.getInt(index + middle * 4);
+                position = skipVarInt(position); //Shared prefix, always 0 at a restart point
+                int keyLength = readVarInt(position);
+                int comparison = compare(position + varIntSize(keyLength), keyLength, key, offset, length);
+                if (comparison == 0) {
+                    return true;
+                } else if (comparison < 0) {
+                    block = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (block < 0) {
+                return false;
+            }
+            //Scan the block without decoding it, matched is the common prefix of the key and the previous entry
+            int position = data + file.getInt(index + block * 4);
+            int entries = Math.min(BLOCK_SIZE, count - block * BLOCK_SIZE);
+            int matched = 0;
+            for (int entry = 0; entry < entries; entry++) {
+                int shared = readVarInt(position);
+                position += varIntSize(shared);
+                int suffixLength = readVarInt(position);
+                position += varIntSize(suffixLength);
+                if (shared < matched) {
+                    return false; //Differs from the previous entry where that one still matched, so it sorts after the key
+                } else if (shared == matched) {
+                    int equal = 0;
+                    while (equal < suffixLength && matched + equal < length
+                            && file.get(position + equal) == toLowerCase(key[offset + matched + equal])) {
+                        equal++;
+                    }
+                    if (equal == suffixLength && matched + equal == length) {
+                        return true;
+                    }
+                    if (equal < suffixLength && (matched + equal == length
+                            || (file.get(position + equal) & 0xff) > (toLowerCase(key[offset + matched + equal]) & 0xff))) {
+                        return false; //Past the key
+                    }
+                    matched += equal;
+                }
+                //Otherwise it shares more with the previous entry than the key does, so it is still before the key
+                position += suffixLength;
+            }
+            return false;
+        }
+
+        //Compares the stored bytes at position with the key as unsigned bytes
+        private int compare(int position, int storedLength, byte[] key, int offset, int length) {
+            int max = Math.min(storedLength, length);
+            for (int count = 0; count < max; count++) {
+                int stored = file.get(position + count) & 0xff;
+                int wanted = toLowerCase(key[offset + count]) & 0xff;
+                if (stored != wanted) {
+                    return stored - wanted;
+                }
+            }
+            return storedLength - length;
+        }
+
+        private int readVarInt(int position) {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = file.get(position++);
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private int skipVarInt(int position) {
+            while (file.get(position++) < 0) {
+            }
+            return position;
+        }
+    }
+
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    //Writes the domains, IDs in sorted order, entries starting with *. become wildcards for their parent
+    public static void write(File out, DomainStore store, int[] domains) {
+        SectionWriter exact = new SectionWriter();
+        SectionWriter wildcards = new SectionWriter();
+        byte[] arena = store.getArena();
+        for (int id : sortByBytes(store, domains)) {
+            if (store.startsWith(id, wildcardPrefix)) {
+                wildcards.add(arena, store.getOffset(id) + wildcardPrefix.length, store.getLength(id) - wildcardPrefix.length);
+            } else {
+                exact.add(arena, store.getOffset(id), store.getLength(id));
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(System.currentTimeMillis());
+        header.putInt(BLOCK_SIZE);
+        exact.putCounts(header);
+        wildcards.putCounts(header);
+        CRC32C checksum = new CRC32C();
+        OutputWriter writer = null;
+        try {
+            writer = new OutputWriter(out, OutputFormat.DOMAINS, false);
+            write(writer, checksum, header.array(), 0, HEADER_SIZE);
+            exact.writeTo(writer, checksum);
+            wildcards.writeTo(writer, checksum);
+            byte[] trailer = ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array();
+            writer.write(trailer, 0, trailer.length);
+            writer.commit();
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+    }
+
+    private static void write(OutputWriter writer, CRC32C checksum, byte[] bytes, int offset, int length) throws IOException {
+        writer.write(bytes, offset, length);
+        checksum.update(bytes, offset, length);
+    }
+
+    //The outputs are in String order, which only differs from byte order for some non-ASCII characters
+    private static int[] sortByBytes(DomainStore store, int[] domains) {
+        byte[] arena = store.getArena();
+        for (int count = 1; count < domains.length; count++) {
+            if (Arrays.compareUnsigned(arena, store.getOffset(domains[count - 1]), store.getOffset(domains[count - 1]) + store.getLength(domains[count - 1]),
+                    arena, store.getOffset(domains[count]), store.getOffset(domains[count]) + store.getLength(domains[count])) > 0) {
+                return Arrays.stream(domains).boxed()
+                        .sorted((a, b) -> Arrays.compareUnsigned(arena, store.getOffset(a), store.getOffset(a) + store.getLength(a),
+                                arena, store.getOffset(b), store.getOffset(b) + store.getLength(b)))
+                        .mapToInt(Integer::intValue).toArray();
+            }
+        }
+        return domains;
+    }
+
+    private static final class SectionWriter {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int[] blocks = new int[16];
+        private int count = 0;
+        private byte[] previous = new byte[256];
+        private int previousLength = 0;
+
+        //Keys must be added in increasing byte order
+        private void add(byte[] buffer, int offset, int length) {
+            int shared = 0;
+            if (count % BLOCK_SIZE == 0) {
+                if (count / BLOCK_SIZE == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+                blocks[count / BLOCK_SIZE] = data.size();
+            } else {
+                int max = Math.min(previousLength, length);
+                while (shared < max && previous[shared] == buffer[offset + shared]) {
+                    shared++;
+                }
+            }
+            writeVarInt(shared);
+            writeVarInt(length - shared);
+            data.write(buffer, offset + shared, length - shared);
+            if (previous.length < length) {
+                previous = new byte[Math.max(length, previous.length * 2)];
+            }
+            System.arraycopy(buffer, offset, previous, 0, length);
+            previousLength = length;
+            count++;
+        }
+
+        private void putCounts(ByteBuffer header) {
+            header.putInt(count);
+            header.putInt((count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            header.putInt(data.size());
+        }
+
+        private void writeTo(OutputWriter writer, CRC32C checksum) throws IOException {
+            int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            ByteBuffer index = ByteBuffer.allocate(blockCount * 4);
+            for (int block = 0; block < blockCount; block++) {
+                index.putInt(blocks[block]);
+            }
+            write(writer, checksum, index.array(), 0, index.capacity());
+            byte[] bytes = data.toByteArray();
+            write(writer, checksum, bytes, 0, bytes.length);
+        }
+
+        private void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                data.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data.write(value);
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Long running mode, rebuilds on a schedule and answers lookups from the latest build over a loopback HTTP endpoint
+//Parsed sources stay in memory between builds so only the ones that changed on disk are parsed again
+//Only parsing is incremental, if any input changed the merge, allowlist removal, sort, wildcards, outputs and cross check all run in full
+//Each build is published by swapping a single reference, lookups never wait on a build and never see one half done
+public final class Daemon {
+
+    private static final AtomicReference<BlocklistSnapshot> current = new AtomicReference<>();
+    private static final ConcurrentHashMap<String, Resident> resident = new ConcurrentHashMap<>();
+    private static final Set<String> residentUsed = ConcurrentHashMap.newKeySet();
+
+    public static void run(String[] args) {
+        if (refresh(args) == null) {
+            System.exit(1);
+        }
+        try {
+            startServer(Main.DAEMON_PORT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh(args);
+            } catch (Exception e) {
+                e.printStackTrace(); //Keep serving the last build and try again next time
+            }
+        }, Main.DAEMON_INTERVAL, Main.DAEMON_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    //Builds again and publishes the result if anything changed, returns the snapshot now being served
+    public static synchronized BlocklistSnapshot refresh(String[] args) {
+        residentUsed.clear();
+        BlocklistSnapshot previous = current.get();
+        BlocklistSnapshot next = Main.build(args, previous);
+        if (next == null) {
+            System.out.println("Build failed" + (previous != null ? ", still serving generation " + previous.getGeneration() : ""));
+            return previous;
+        }
+        resident.keySet().retainAll(residentUsed); //Drop sources no longer in the config
+        if (next != previous) {
+            publish(next);
+        }
+        return next;
+    }
+
+    public static void publish(BlocklistSnapshot snapshot) {
+        current.set(snapshot);
+        System.out.println("Serving generation " + snapshot.getGeneration());
+    }
+
+    public static BlocklistSnapshot getSnapshot() {
+        return current.get();
+    }
+
+    //Returns the domains parsed from source by an earlier build and fills in its line counts, or null if it changed since
+    public static DomainStore getResident(File source, RunReport.Source report) {
+        Resident kept = resident.get(source.getPath());
+        if (kept == null || kept.size != source.length() || kept.lastModified != source.lastModified()) {
+            return null;
+        }
+        residentUsed.add(source.getPath());
+        report.parseCached = true;
+        report.linesRead = kept.linesRead;
+        report.linesSkipped = kept.linesSkipped;
+        report.linesRejected = kept.linesRejected;
+        return kept.domains;
+    }
+
+    public static void putResident(File source, DomainStore domains, RunReport.Source report) {
+        resident.put(source.getPath(), new Resident(source, domains, report));
+        residentUsed.add(source.getPath());
+    }
+
+    public static HttpServer startServer(int port) throws IOException {
+        //Headers and body are written separately, without this each response waits out a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/lookup", Daemon::handleLookup);
+        server.createContext("/status", Daemon::handleStatus);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "lookup");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Serving lookups on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/lookup?domain=");
+        return server;
+    }
+
+    //GET /lookup?domain=example.com
+    private static void handleLookup(HttpExchange exchange) throws IOException {
+        BlocklistSnapshot snapshot = current.get();
+        String domain = getParameter(exchange.getRequestURI().getRawQuery(), "domain");
+        if (!isRead(exchange)) {
+            respond(exchange, 405, "{\"error\": \"Only GET is supported\"}");
+        } else if (snapshot == null) {
+            respond(exchange, 503, "{\"error\": \"Nothing built yet\"}");
+        } else if (domain == null || domain.isBlank()) {
+            respond(exchange, 400, "{\"error\": \"Missing domain parameter\"}");
+        } else {
+            respond(exchange, 200, snapshot.lookup(domain).toJson());
+        }
+    }
+
+    //GET /status
+    private static void handleStatus(HttpExchange exchange) throws IOException {
+        BlocklistSnapshot snapshot = current.get();
+        if (!isRead(exchange)) {
+            respond(exchange, 405, "{\"error\": \"Only GET is supported\"}");
+        } else if (snapshot == null) {
+            respond(exchange, 503, "{\"error\": \"Nothing built yet\"}");
+        } else {
+            respond(exchange, 200, String.join("\n", snapshot.toJson()));
+        }
+    }
+
+    private static boolean isRead(HttpExchange exchange) {
+        return exchange.getRequestMethod().equals("GET") || exchange.getRequestMethod().equals("HEAD");
+    }
+
+    private static String getParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            String[] parameterSplit = parameter.split("=", 2);
+            if (parameterSplit.length == 2 && parameterSplit[0].equals(name)) {
+                try {
+                    return URLDecoder.decode(parameterSplit[1], StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        try (exchange) {
+            byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(code, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(code, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static final class Resident {
+        private final long size;
+        private final long lastModified;
+        private final DomainStore domains;
+        private final int linesRead;
+        private final int linesSkipped;
+        private final int linesRejected;
+
+        private Resident(File source, DomainStore domains, RunReport.Source report) {
+            this.size = source.length();
+            this.lastModified = source.lastModified();
+            this.domains = domains;
+            this.linesRead = report.linesRead;
+            this.linesSkipped = report.linesSkipped;
+            this.linesRejected = report.linesRejected;
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//Interns each domain once as UTF-8 bytes in a single growing arena and refers to it by an int ID
+//IDs are handed out in insertion order starting at 0
+//Not thread safe for writes, concurrent reads are fine once no more domains are added and the store is indexed
+public final class DomainStore {
+
+    private byte[] arena;
+    private int arenaSize = 0;
+    private int[] offsets; //offsets[id] is where the domain starts, offsets[id + 1] where it ends
+    private int[] hashes;
+    private int[] table; //Open addressing, holds id + 1 and 0 for empty slots, null until needed for a store filled by append()
+    private int size = 0;
+
+    public DomainStore() {
+        this(1024);
+    }
+
+    public DomainStore(int expectedSize) {
+        this(expectedSize, true);
+    }
+
+    //A store that is not indexed builds its hash table on the first lookup, or when index() is called
+    public DomainStore(int expectedSize, boolean indexed) {
+        arena = new byte[Math.max(256, expectedSize * 24)];
+        offsets = new int[Math.max(16, expectedSize) + 1];
+        hashes = new int[offsets.length];
+        if (indexed) {
+            table = new int[getCapacity(expectedSize)];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int intern(String domain) {
+        byte[] bytes = domain.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    //Returns the ID of the domain, adding it if not already present
+    public int intern(byte[] buffer, int offset, int length) {
+        if (table == null) {
+            index();
+        }
+        int hash = hash(buffer, offset, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && equals(id, buffer, offset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = add(buffer, offset, length, hash);
+        table[slot] = id + 1;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    //Adds the domain without looking for it, the caller must know it is not present yet, such as when merging sorted runs
+    //Skips the hash table entirely until the store is indexed
+    public int append(byte[] buffer, int offset, int length) {
+        if (table != null) {
+            return intern(buffer, offset, length);
+        }
+        return add(buffer, offset, length, hash(buffer, offset, length));
+    }
+
+    //Builds the hash table of a store filled by append(), must be called before the store is read from several threads
+    public void index() {
+        if (table == null) {
+            rehash(getCapacity(size));
+        }
+    }
+
+    private int add(byte[] buffer, int offset, int length, int hash) {
+        if (arenaSize + length > arena.length) {
+            arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) arena.length * 2, (long) arenaSize + length)));
+        }
+        if (size + 1 >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            hashes = Arrays.copyOf(hashes, offsets.length);
+        }
+        int id = size++;
+        System.arraycopy(buffer, offset, arena, arenaSize, length);
+        offsets[id] = arenaSize;
+        arenaSize += length;
+        offsets[id + 1] = arenaSize;
+        hashes[id] = hash;
+        return id;
+    }
+
+    private static int getCapacity(int expectedSize) {
+        return Integer.highestOneBit(Math.max(16, expectedSize * 2) - 1) << 1;
+    }
+
+    public int find(String domain) {
+        byte[] bytes = domain.getBytes(StandardCharsets.UTF_8);
+        return find(bytes, 0, bytes.length);
+    }
+
+    //Returns the ID of the domain, or -1 if not present
+    public int find(byte[] buffer, int offset, int length) {
+        if (table == null) {
+            index();
+        }
+        int hash = hash(buffer, offset, length);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && equals(id, buffer, offset, length)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    //The arena is replaced as it grows, do not hold onto it across calls to intern()
+    public byte[] getArena() {
+        return arena;
+    }
+
+    public int getOffset(int id) {
+        return offsets[id];
+    }
+
+    public int getLength(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    public String getString(int id) {
+        return new String(arena, offsets[id], getLength(id), StandardCharsets.UTF_8);
+    }
+
+    public void writeTo(int id, OutputStream out) throws IOException {
+        out.write(arena, offsets[id], getLength(id));
+    }
+
+    public boolean startsWith(int id, byte[] prefix) {
+        if (getLength(id) < prefix.length) {
+            return false;
+        }
+        for (int count = 0; count < prefix.length; count++) {
+            if (arena[offsets[id] + count] != prefix[count]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Same order as String.compareTo() on the decoded domains
+    public int compare(int a, int b) {
+        return compare(arena, offsets[a], getLength(a), arena, offsets[b], getLength(b));
+    }
+
+    //Same order as compare(), for domains in different stores
+    public static int compare(DomainStore storeA, int a, DomainStore storeB, int b) {
+        return compare(storeA.arena, storeA.offsets[a], storeA.getLength(a), storeB.arena, storeB.offsets[b], storeB.getLength(b));
+    }
+
+    public static int compare(byte[] arenaA, int offsetA, int lengthA, byte[] arenaB, int offsetB, int lengthB) {
+        int max = Math.min(lengthA, lengthB);
+        for (int count = 0; count < max; count++) {
+            byte byteA = arenaA[offsetA + count];
+            byte byteB = arenaB[offsetB + count];
+            if (byteA != byteB) {
+                if (byteA < 0 || byteB < 0) {
+                    //UTF-8 byte order is code point order, which differs from UTF-16 order for some characters
+                    return new String(arenaA, offsetA, lengthA, StandardCharsets.UTF_8).compareTo(new String(arenaB, offsetB, lengthB, StandardCharsets.UTF_8));
+                }
+                return byteA - byteB;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    //Sorts the IDs by their domain, in parallel for large arrays
+    public void sort(int[] ids) {
+        if (ids.length < 2) {
+            return;
+        }
+        int[] buffer = new int[ids.length];
+        ForkJoinPool.commonPool().invoke(new SortTask(ids, buffer, 0, ids.length));
+    }
+
+    public int[] getSortedIds() {
+        int[] ids = new int[size];
+        for (int id = 0; id < size; id++) {
+            ids[id] = id;
+        }
+        sort(ids);
+        return ids;
+    }
+
+    private boolean equals(int id, byte[] buffer, int offset, int length) {
+        int start = offsets[id];
+        if (offsets[id + 1] - start != length) {
+            return false;
+        }
+        for (int count = 0; count < length; count++) {
+            if (arena[start + count] != buffer[offset + count]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    public static int hash(byte[] buffer, int offset, int length) {
+        int hash = 0;
+        for (int position = offset; position < offset + length; position++) {
+            hash = 31 * hash + buffer[position];
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SEQUENTIAL_THRESHOLD = 8192;
+        private final int[] ids;
+        private final int[] buffer;
+        private final int start;
+        private final int end;
+
+        private SortTask(int[] ids, int[] buffer, int start, int end) {
+            this.ids = ids;
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= SEQUENTIAL_THRESHOLD) {
+                mergeSort(start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new SortTask(ids, buffer, start, middle), new SortTask(ids, buffer, middle, end));
+            merge(start, middle, end);
+        }
+
+        private void mergeSort(int from, int to) {
+            if (to - from <= 16) {
+                for (int position = from + 1; position < to; position++) {
+                    int id = ids[position];
+                    int insert = position;
+                    while (insert > from && compare(ids[insert - 1], id) > 0) {
+                        ids[insert] = ids[insert - 1];
+                        insert--;
+                    }
+                    ids[insert] = id;
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            mergeSort(from, middle);
+            mergeSort(middle, to);
+            merge(from, middle, to);
+        }
+
+        private void merge(int from, int middle, int to) {
+            if (compare(ids[middle - 1], ids[middle]) <= 0) {
+                return; //Already in order
+            }
+            System.arraycopy(ids, from, buffer, from, to - from);
+            int left = from;
+            int right = middle;
+            for (int position = from; position < to; position++) {
+                if (right >= to || (left < middle && compare(buffer[left], buffer[right]) <= 0)) {
+                    ids[position] = buffer[left++];
+                } else {
+                    ids[position] = buffer[right++];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//Trie of domains keyed by label, walked from the TLD down
+//Labels are split on every dot including empty ones, so a proper suffix match is the same as endsWith("." + entry)
+//Labels are kept as UTF-8 so DomainStore entries can be looked up in place
+//Lookups on bytes do not allocate, safe for concurrent reads once built
+public final class DomainSuffixTrie {
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    public void add(String domain) {
+        byte[] bytes = domain.getBytes(StandardCharsets.UTF_8);
+        Node node = root;
+        int end = bytes.length;
+        while (true) {
+            int dot = lastIndexOfDot(bytes, 0, end);
+            node = node.getOrAddChild(bytes, dot + 1, end);
+            if (dot < 0) {
+                break;
+            }
+            end = dot;
+        }
+        if (!node.terminal) {
+            node.terminal = true;
+            size++;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(String domain) {
+        byte[] bytes = domain.getBytes(StandardCharsets.UTF_8);
+        Node node = root;
+        int end = bytes.length;
+        while (true) {
+            int dot = lastIndexOfDot(bytes, 0, end);
+            node = node.getChild(bytes, dot + 1, end);
+            if (node == null) {
+                return false;
+            }
+            if (dot < 0) {
+                return node.terminal;
+            }
+            end = dot;
+        }
+    }
+
+    //Returns true if domain ends with "." + any entry
+    public boolean containsParentOf(String domain) {
+        byte[] bytes = domain.getBytes(StandardCharsets.UTF_8);
+        return containsParentOf(bytes, 0, bytes.length);
+    }
+
+    public boolean containsParentOf(byte[] domain, int offset, int length) {
+        Node node = root;
+        int end = offset + length;
+        while (true) {
+            int dot = lastIndexOfDot(domain, offset, end);
+            if (dot < offset) {
+                return false; //The remaining label is the domain itself
+            }
+            node = node.getChild(domain, dot + 1, end);
+            if (node == null) {
+                return false;
+            }
+            if (node.terminal) {
+                return true;
+            }
+            end = dot;
+        }
+    }
+
+    private static int lastIndexOfDot(byte[] domain, int start, int end) {
+        for (int position = end - 1; position >= start; position--) {
+            if (domain[position] == '.') {
+                return position;
+            }
+        }
+        return start - 1;
+    }
+
+    private static final class Node {
+        private byte[][] labels;
+        private Node[] children;
+        private int childCount = 0;
+        private boolean terminal = false;
+
+        private Node getChild(byte[] domain, int start, int end) {
+            if (labels == null) {
+                return null;
+            }
+            int mask = labels.length - 1;
+            for (int slot = hash(domain, start, end) & mask; labels[slot] != null; slot = (slot + 1) & mask) {
+                if (Arrays.equals(labels[slot], 0, labels[slot].length, domain, start, end)) {
+                    return children[slot];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrAddChild(byte[] domain, int start, int end) {
+            Node child = getChild(domain, start, end);
+            if (child != null) {
+                return child;
+            }
+            if (labels == null || (childCount + 1) * 2 > labels.length) {
+                resize(labels == null ? 2 : labels.length * 2);
+            }
+            child = new Node();
+            insert(Arrays.copyOfRange(domain, start, end), child);
+            return child;
+        }
+
+        private void insert(byte[] label, Node child) {
+            int mask = labels.length - 1;
+            int slot = hash(label, 0, label.length) & mask;
+            while (labels[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            labels[slot] = label;
+            children[slot] = child;
+            childCount++;
+        }
+
+        private void resize(int capacity) {
+            byte[][] oldLabels = labels;
+            Node[] oldChildren = children;
+            labels = new byte[capacity][];
+            children = new Node[capacity];
+            childCount = 0;
+            if (oldLabels != null) {
+                for (int slot = 0; slot < oldLabels.length; slot++) {
+                    if (oldLabels[slot] != null) {
+                        insert(oldLabels[slot], oldChildren[slot]);
+                    }
+                }
+            }
+        }
+
+        private static int hash(byte[] input, int start, int end) {
+            return DomainStore.hash(input, start, end - start);
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Single pass scanner that extracts domains from one line of a hosts, adblock, dnsmasq or plain domain list
+//Accepts exactly what the original split/replaceAll/regex parser accepted, without allocating per line
+//Not thread safe, use one instance per thread
+public final class DomainTokenizer {
+
+    public interface DomainSink {
+        //Receives the UTF-8 bytes of an accepted domain, the buffer is reused after the call returns
+        void accept(byte[] buffer, int offset, int length);
+    }
+
+    public static final int SKIPPED = -1; //Returned by tokenize() for blank and comment lines
+    private static final String hostnameRegex = "^((?!-)[A-Za-z0-9-]{1,63}(?<!-)\\.)+[A-Za-z]{2,6}$"; //Credit: http://www.mkyong.com/regular-expressions/domain-name-regular-expression-example/
+    private static final Pattern hostnamePattern = Pattern.compile(hostnameRegex);
+    //String.toLowerCase() maps some ASCII letters outside of ASCII for these languages
+    private static final boolean asciiLowerCaseSafe = !(Locale.getDefault().getLanguage().equals("tr")
+            || Locale.getDefault().getLanguage().equals("az")
+            || Locale.getDefault().getLanguage().equals("lt"));
+    private static final byte[][] schemes = {
+            "https://".getBytes(StandardCharsets.US_ASCII),
+            "http://".getBytes(StandardCharsets.US_ASCII),
+            "ftp://".getBytes(StandardCharsets.US_ASCII)
+    };
+    private static final byte[] punycodePrefix = "xn--".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] hostPath = "/host/".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] line = new byte[256];
+    private byte[] token = new byte[256];
+    private byte[] tokenStripped = new byte[256];
+
+    //Returns the number of domains passed to sink, or SKIPPED for blank and comment lines
+    public int tokenize(CharSequence input, DomainSink sink) {
+        int length = input.length();
+        if (line.length < length) {
+            line = new byte[Math.max(length, line.length * 2)];
+        }
+        if (!asciiLowerCaseSafe) {
+            return tokenizeFallback(input.toString(), sink);
+        }
+        for (int position = 0; position < length; position++) {
+            char c = input.charAt(position);
+            if (c >= 0x80) {
+                return tokenizeFallback(input.toString(), sink);
+            }
+            line[position] = (byte) (c >= 'A' && c <= 'Z' ? c + 32 : c);
+        }
+        return tokenizeLowerAscii(line, length, sink);
+    }
+
+    //Input is the UTF-8 encoded line without its line terminator
+    public int tokenize(byte[] input, int offset, int length, DomainSink sink) {
+        if (line.length < length) {
+            line = new byte[Math.max(length, line.length * 2)];
+        }
+        if (!asciiLowerCaseSafe) {
+            return tokenizeFallback(new String(input, offset, length, StandardCharsets.UTF_8), sink);
+        }
+        for (int position = 0; position < length; position++) {
+            byte b = input[offset + position];
+            if (b < 0) {
+                return tokenizeFallback(new String(input, offset, length, StandardCharsets.UTF_8), sink);
+            }
+            line[position] = (byte) (b >= 'A' && b <= 'Z' ? b + 32 : b);
+        }
+        return tokenizeLowerAscii(line, length, sink);
+    }
+
+    //Same as above reading straight from a buffer, such as a mapped file, without moving its position
+    public int tokenize(ByteBuffer input, int offset, int length, DomainSink sink) {
+        if (line.length < length) {
+            line = new byte[Math.max(length, line.length * 2)];
+        }
+        for (int position = 0; position < length; position++) {
+            byte b = input.get(offset + position);
+            if (b < 0 || !asciiLowerCaseSafe) {
+                byte[] bytes = new byte[length];
+                input.get(offset, bytes, 0, length);
+                return tokenizeFallback(new String(bytes, StandardCharsets.UTF_8), sink);
+            }
+            line[position] = (byte) (b >= 'A' && b <= 'Z' ? b + 32 : b);
+        }
+        return tokenizeLowerAscii(line, length, sink);
+    }
+
+    private int tokenizeLowerAscii(byte[] line, int length, DomainSink sink) {
+        if (!shouldConsiderLine(line, length)) {
+            return SKIPPED;
+        }
+        int found = 0;
+        int start = 0;
+        while (start < length) {
+            while (start < length && isSeparator(line[start])) {
+                start++;
+            }
+            int end = start;
+            while (end < length && !isSeparator(line[end])) {
+                end++;
+            }
+            if (end > start && considerToken(line, start, end - start, sink)) {
+                found++;
+            }
+            start = end;
+        }
+        return found;
+    }
+
+    private boolean considerToken(byte[] source, int offset, int length, DomainSink sink) {
+        byte[] current = source;
+        int currentOffset = offset;
+        int currentLength = length;
+        if (indexOf(source, offset, length, (byte) ':') >= 0) {
+            //Strip each scheme in turn, same as the chained replaceAll() calls
+            for (byte[] scheme : schemes) {
+                byte[] target = (current == token) ? tokenStripped : token;
+                if (target.length < currentLength) {
+                    target = new byte[Math.max(currentLength, target.length * 2)];
+                    if (current == token) {
+                        tokenStripped = target;
+                    } else {
+                        token = target;
+                    }
+                }
+                currentLength = removeAll(current, currentOffset, currentLength, scheme, target);
+                current = target;
+                currentOffset = 0;
+            }
+        }
+        if (isHostname(current, currentOffset, currentLength)) {
+            sink.accept(current, currentOffset, currentLength);
+            return true;
+        } else if (indexOf(current, currentOffset, currentLength, punycodePrefix) >= 0
+                && indexOf(current, currentOffset, currentLength, hostPath) < 0
+                && !(currentLength >= 2 && current[currentOffset] == '|' && current[currentOffset + 1] == '|')) {//Ugly
+            sink.accept(current, currentOffset, currentLength);
+            return true;
+        }
+        return false;
+    }
+
+    //Equivalent to hostnamePattern for lowercase ASCII input
+    private static boolean isHostname(byte[] input, int offset, int length) {
+        int end = offset + length;
+        int labelStart = offset;
+        int labels = 0;
+        for (int position = offset; position < end; position++) {
+            if (input[position] == '.') {
+                int labelLength = position - labelStart;
+                if (labelLength < 1 || labelLength > 63
+                        || input[labelStart] == '-' || input[position - 1] == '-') {
+                    return false;
+                }
+                labelStart = position + 1;
+                labels++;
+            } else if (!isLabelChar(input[position])) {
+                return false;
+            }
+        }
+        int tldLength = end - labelStart;
+        if (labels == 0 || tldLength < 2 || tldLength > 6) {
+            return false;
+        }
+        for (int position = labelStart; position < end; position++) {
+            if (input[position] < 'a' || input[position] > 'z') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean shouldConsiderLine(byte[] line, int length) {
+        boolean blank = true;
+        for (int position = 0; position < length && blank; position++) {
+            blank = (line[position] & 0xff) <= ' ';
+        }
+        if (blank) {
+            return false;
+        }
+        byte first = line[0];
+        return first != '#'
+                && first != ';'
+                && first != '!'
+                && first != '$'
+                && first != '@'
+                && !(first == '/' && length > 1 && line[1] == '/');
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r'
+                || b == ',' || b == ';' || b == '~';
+    }
+
+    private static boolean isLabelChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-';
+    }
+
+    //Copies input to out with every non-overlapping occurrence of pattern removed, left to right like String.replaceAll()
+    private static int removeAll(byte[] input, int offset, int length, byte[] pattern, byte[] out) {
+        int written = 0;
+        int position = offset;
+        int end = offset + length;
+        while (position < end) {
+            if (regionMatches(input, position, end, pattern)) {
+                position += pattern.length;
+            } else {
+                out[written++] = input[position++];
+            }
+        }
+        return written;
+    }
+
+    private static boolean regionMatches(byte[] input, int position, int end, byte[] pattern) {
+        if (end - position < pattern.length) {
+            return false;
+        }
+        for (int count = 0; count < pattern.length; count++) {
+            if (input[position + count] != pattern[count]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] input, int offset, int length, byte needle) {
+        for (int position = offset; position < offset + length; position++) {
+            if (input[position] == needle) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] input, int offset, int length, byte[] needle) {
+        int end = offset + length;
+        for (int position = offset; position <= end - needle.length; position++) {
+            if (regionMatches(input, position, end, needle)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    //Original regex based parser, only used for lines with non-ASCII characters where lowercasing and line terminators get complicated
+    private static int tokenizeFallback(String input, DomainSink sink) {
+        String line = input.toLowerCase();
+        if (!Main.shouldConsiderString(line)) {
+            return SKIPPED;
+        }
+        int found = 0;
+
+        String[] blankSplit = line
+                .replaceAll("[\\s,;]", "~")
+                .split("~");
+
+        Matcher matcher;
+        for (String aSpaceSplit : blankSplit) {
+            aSpaceSplit = aSpaceSplit
+                    .replaceAll("https://", "")
+                    .replaceAll("http://", "")
+                    .replaceAll("ftp://", "");
+            matcher = hostnamePattern.matcher(aSpaceSplit);//Apply the pattern to the string
+            String matchedDomain = null;
+            if (matcher.find()) {//Check if the string meets our requirements
+                matchedDomain = matcher.group();
+            } else if (aSpaceSplit.contains("xn--") && !aSpaceSplit.contains("/host/") && !aSpaceSplit.startsWith("||")) {//Ugly
+                matchedDomain = aSpaceSplit;
+            }
+            if (matchedDomain != null) {
+                byte[] matchedBytes = matchedDomain.getBytes(StandardCharsets.UTF_8);
+                sink.accept(matchedBytes, 0, matchedBytes.length);
+                found++;
+            }
+        }
+        return found;
+    }
+
+}
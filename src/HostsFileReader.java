@@ -0,0 +1,403 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+//Reads the domains of a cached source without Scanner
+//Plain text files are memory mapped and split on line boundaries into chunks that are parsed in parallel
+//Gzip files and the entries of zip and 7z archives are streamed through a buffer, nothing is extracted to disk
+//All are split into lines exactly like Scanner.nextLine() did
+//Scanner stopped at the last line with a non-whitespace character and at the first byte invalid in the default charset, so these do too
+public final class HostsFileReader {
+
+    public static int CHUNK_SIZE = 8 << 20; //Plain text files larger than this are parsed in parallel
+    private static final int MAX_MAPPED_CHUNK = 1 << 30; //A single mapping cannot exceed 2 GiB, chunks end at the next newline after this
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+    private static final Charset charset = Charset.defaultCharset();
+    //Other charsets may map ASCII bytes differently or never fail, so they keep using Scanner
+    private static final boolean charsetSupported = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII);
+
+    //For archives only the entry with the given name is read, or every entry if null
+    public static DomainStore read(File in, String entry, RunReport.Source report) throws IOException {
+        String fileType = Main.identifyFileType(in.toString());
+        switch (fileType) {
+            case ".txt":
+                return charsetSupported ? readMapped(in, report) : readScanner(in, false, report);
+            case ".gz":
+                return charsetSupported ? readGzip(in, report) : readScanner(in, true, report);
+            case ".zip":
+                return readZip(in, entry, report);
+            case ".7z":
+                return readSevenZip(in, entry, report);
+        }
+        throw new IOException("Unsupported file type: " + in.getName());
+    }
+
+    private static DomainStore readMapped(File in, RunReport.Source report) throws IOException {
+        try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ArrayList<Long> boundaries = new ArrayList<>();
+            boundaries.add(0L);
+            //Merging the chunks costs more than it saves without another core to parse them on
+            boolean parallel = ForkJoinPool.getCommonPoolParallelism() > 1;
+            int chunkSize = parallel ? Math.min(CHUNK_SIZE, MAX_MAPPED_CHUNK) : MAX_MAPPED_CHUNK;
+            while (boundaries.get(boundaries.size() - 1) < size) {
+                boundaries.add(findChunkEnd(channel, boundaries.get(boundaries.size() - 1) + chunkSize, size));
+            }
+            if (boundaries.size() <= 2) {
+                LineParser parser = parseChunk(channel, 0, size);
+                return parser.finish(in, report);
+            }
+            if (!parallel) {
+                LineParser result = new LineParser();
+                for (int chunk = 0; chunk + 1 < boundaries.size() && !result.stopped; chunk++) {
+                    result.append(parseChunk(channel, boundaries.get(chunk), boundaries.get(chunk + 1)));
+                }
+                return result.finish(in, report);
+            }
+            ArrayList<Future<LineParser>> chunks = new ArrayList<>();
+            for (int chunk = 0; chunk + 1 < boundaries.size(); chunk++) {
+                long start = boundaries.get(chunk);
+                long end = boundaries.get(chunk + 1);
+                chunks.add(ForkJoinPool.commonPool().submit(() -> parseChunk(channel, start, end)));
+            }
+            //Merged in file order so the result is the same as parsing the file in one go
+            LineParser result = new LineParser();
+            try {
+                for (Future<LineParser> chunk : chunks) {
+                    if (!result.stopped) {
+                        result.append(chunk.get());
+                    }
+                }
+            } catch (Exception e) {
+                for (Future<LineParser> chunk : chunks) {
+                    chunk.cancel(false);
+                }
+                throw new IOException("Failed to parse " + in.getName(), e);
+            }
+            return result.finish(in, report);
+        }
+    }
+
+    private static LineParser parseChunk(FileChannel channel, long start, long end) throws IOException {
+        LineParser parser = new LineParser();
+        if (end > start) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            parser.parse(buffer, 0, buffer.limit(), true);
+        }
+        return parser;
+    }
+
+    //Returns the position just after the first newline at or after target, or size if there is none
+    private static long findChunkEnd(FileChannel channel, long target, long size) throws IOException {
+        if (target >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long position = target;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int offset = 0; offset < read; offset++) {
+                if (buffer.get(offset) == '\n') {
+                    return position + offset + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static DomainStore readGzip(File in, RunReport.Source report) throws IOException {
+        LineParser parser = new LineParser();
+        try (InputStream stream = new GZIPInputStream(new FileInputStream(in), 65536)) {
+            parser.parse(stream);
+        }
+        return parser.finish(in, report);
+    }
+
+    private static DomainStore readZip(File in, String entry, RunReport.Source report) throws IOException {
+        LineParser parser = new LineParser();
+        boolean found = false;
+        try (ZipInputStream stream = new ZipInputStream(new BufferedInputStream(new FileInputStream(in), 65536))) {
+            ZipEntry current;
+            while ((current = stream.getNextEntry()) != null && !parser.stopped) {
+                if (!current.isDirectory() && (entry == null || current.getName().equals(entry))) {
+                    parser.parse(stream);
+                    found = true;
+                }
+            }
+        }
+        if (!found) {
+            System.out.println("\tNo " + (entry == null ? "files" : "entry " + entry) + " in " + in.getName());
+        }
+        return parser.finish(in, report);
+    }
+
+    //7z needs random access to find its entries, each one is still decompressed as a stream
+    private static DomainStore readSevenZip(File in, String entry, RunReport.Source report) throws IOException {
+        LineParser parser = new LineParser();
+        boolean found = false;
+        try (SevenZFile archive = SevenZFile.builder().setFile(in).get()) {
+            SevenZArchiveEntry current;
+            while ((current = archive.getNextEntry()) != null && !parser.stopped) {
+                if (!current.isDirectory() && current.hasStream() && (entry == null || current.getName().equals(entry))) {
+                    parser.parse(archive.getInputStream(current));
+                    found = true;
+                }
+            }
+        }
+        if (!found) {
+            System.out.println("\tNo " + (entry == null ? "files" : "entry " + entry) + " in " + in.getName());
+        }
+        return parser.finish(in, report);
+    }
+
+    //Original reader, only used when the default charset is neither UTF-8 nor ASCII
+    private static DomainStore readScanner(File in, boolean gzip, RunReport.Source report) throws IOException {
+        DomainStore out = new DomainStore();
+        DomainTokenizer tokenizer = new DomainTokenizer();
+        DomainTokenizer.DomainSink sink = out::intern;
+        int rawCount = 0;
+        int skippedCount = 0;
+        int rejectedCount = 0;
+        try (Scanner fileIn = gzip ? new Scanner(new GZIPInputStream(new FileInputStream(in))) : new Scanner(in)) {
+            while (fileIn.hasNext()) {
+                int found = tokenizer.tokenize(fileIn.nextLine(), sink);
+                if (found == DomainTokenizer.SKIPPED) {
+                    skippedCount++;
+                } else if (found == 0) {
+                    rejectedCount++;
+                }
+                rawCount++;
+            }
+        }
+        report.linesRead = rawCount;
+        report.linesSkipped = skippedCount;
+        report.linesRejected = rejectedCount;
+        return out;
+    }
+
+    //Splits bytes into lines and tokenizes them into its own store, one instance per chunk or stream
+    private static final class LineParser {
+        private final DomainStore store = new DomainStore();
+        private final DomainTokenizer tokenizer = new DomainTokenizer();
+        private final DomainTokenizer.DomainSink sink = store::intern;
+        private final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        private byte[] scratch = new byte[256];
+        private int lines = 0; //Up to and including the last line with a non-whitespace character
+        private int skipped = 0;
+        private int rejected = 0;
+        private int pendingBlank = 0; //Whitespace only lines after the last counted line
+        private boolean stopped = false; //Input invalid in the default charset was found, nothing after it is read
+
+        //Parses every line of the stream, the stream is not closed
+        private void parse(InputStream stream) {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int filled = 0;
+            boolean eof = false;
+            while (!eof && !stopped) {
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2); //Line longer than the buffer
+                }
+                int read;
+                try {
+                    read = stream.read(buffer, filled, buffer.length - filled);
+                } catch (IOException e) {
+                    //Scanner treated a broken stream as its end, keep what was read until then
+                    e.printStackTrace();
+                    read = -1;
+                }
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+                int consumed = parse(ByteBuffer.wrap(buffer), 0, filled, eof);
+                System.arraycopy(buffer, consumed, buffer, 0, filled - consumed);
+                filled -= consumed;
+            }
+        }
+
+        //Parses the lines in [start, end) and returns the position after the last one parsed
+        //Unless last is set the bytes after that position are an incomplete line and should be passed again with more input
+        private int parse(ByteBuffer buffer, int start, int end, boolean last) {
+            int position = start;
+            while (position < end && !stopped) {
+                int lineStart = position;
+                int lineEnd = -1;
+                int next = -1;
+                boolean ascii = true;
+                boolean significant = false;
+                while (position < end) {
+                    byte b = buffer.get(position);
+                    if (b == '\n' || b == '\r') {
+                        if (b == '\r' && position + 1 == end && !last) {
+                            return lineStart; //Might be the first half of \r\n
+                        }
+                        lineEnd = position;
+                        next = (b == '\r' && position + 1 < end && buffer.get(position + 1) == '\n') ? position + 2 : position + 1;
+                        break;
+                    }
+                    if (b < 0) {
+                        ascii = false;
+                    } else if (!significant && !isAsciiWhitespace(b)) {
+                        significant = true;
+                    }
+                    position++;
+                }
+                if (lineEnd < 0) {
+                    if (!last) {
+                        return lineStart;
+                    }
+                    lineEnd = end;
+                    next = end;
+                }
+                if (ascii) {
+                    if (countLine(significant)) {
+                        countResult(tokenizer.tokenize(buffer, lineStart, lineEnd - lineStart, sink));
+                    }
+                } else {
+                    parseDecoded(buffer, lineStart, lineEnd - lineStart);
+                }
+                position = next;
+            }
+            return position;
+        }
+
+        //Lines with non-ASCII characters can contain the other line separators Scanner splits on
+        private void parseDecoded(ByteBuffer buffer, int offset, int length) {
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(offset, scratch, 0, length);
+            CharBuffer decoded;
+            try {
+                decoded = decoder.decode(ByteBuffer.wrap(scratch, 0, length));
+            } catch (CharacterCodingException e) {
+                stopped = true;
+                return;
+            }
+            int lineStart = 0;
+            for (int position = 0; position <= decoded.length(); position++) {
+                if (position == decoded.length() || isUnicodeLineSeparator(decoded.charAt(position))) {
+                    CharSequence line = decoded.subSequence(lineStart, position);
+                    //Unlike the others \u0085 is not whitespace, so Scanner counted the line it ends even if blank
+                    boolean endsInNextLine = position < decoded.length() && decoded.charAt(position) == '\u0085';
+                    if (countLine(endsInNextLine || !isWhitespace(line))) {
+                        countResult(tokenizer.tokenize(line, sink));
+                    }
+                    lineStart = position + 1;
+                }
+            }
+        }
+
+        //Returns true if the line should be tokenized, whitespace only lines are only counted once a later line is not
+        private boolean countLine(boolean significant) {
+            if (!significant) {
+                pendingBlank++;
+                return false;
+            }
+            lines += pendingBlank + 1;
+            skipped += pendingBlank;
+            pendingBlank = 0;
+            return true;
+        }
+
+        private void countResult(int found) {
+            if (found == DomainTokenizer.SKIPPED) {
+                skipped++;
+            } else if (found == 0) {
+                rejected++;
+            }
+        }
+
+        //Adds the next chunk of the same file
+        private void append(LineParser chunk) {
+            for (int id = 0; id < chunk.store.size(); id++) {
+                store.intern(chunk.store.getArena(), chunk.store.getOffset(id), chunk.store.getLength(id));
+            }
+            if (chunk.lines > 0) {
+                lines += pendingBlank + chunk.lines;
+                skipped += pendingBlank + chunk.skipped;
+                rejected += chunk.rejected;
+                pendingBlank = chunk.pendingBlank;
+            } else {
+                pendingBlank += chunk.pendingBlank;
+            }
+            stopped = chunk.stopped;
+        }
+
+        private DomainStore finish(File in, RunReport.Source report) {
+            if (stopped) {
+                System.out.println("\tStopped reading " + in.getName() + " at input invalid in " + charset + " after line " + (lines + pendingBlank));
+            }
+            report.linesRead = lines;
+            report.linesSkipped = skipped;
+            report.linesRejected = rejected;
+            return store;
+        }
+
+        //Same as Character.isWhitespace() for ASCII
+        private static boolean isAsciiWhitespace(byte b) {
+            return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+        }
+
+        private static boolean isWhitespace(CharSequence line) {
+            for (int position = 0; position < line.length(); position++) {
+                if (!Character.isWhitespace(line.charAt(position))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isUnicodeLineSeparator(char c) {
+            return c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+    }
+
+}
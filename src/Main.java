@@ -16,51 +16,106 @@ along with this program.  If not, see <https://www.gnu.org/licenses/>.
 */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 public class Main {
 
-    private static final String hostnameRegex = "^((?!-)[A-Za-z0-9-]{1,63}(?<!-)\\.)+[A-Za-z]{2,6}$"; //Credit: http://www.mkyong.com/regular-expressions/domain-name-regular-expression-example/
-    private static final Pattern hostnamePattern = Pattern.compile(hostnameRegex);
-    private static final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     public static final Set<String> arrWildcardExceptions = new HashSet<>();
+    public static PublicSuffixList PUBLIC_SUFFIXES = new PublicSuffixList(); //Counted wildcards at or above a public suffix are dropped, manual ones only when they are one
+    public static DomainSuffixTrie ALLOWLIST_SUFFIXES = new DomainSuffixTrie(); //Allowlist entries that also exclude every subdomain
     public static final Set<String> arrWildcardBlock = new HashSet<>();
-    public static int RAW_COUNT = 0;
-    public static final HashMap<String, HashSet<String>> listMap = new HashMap<>();
+    public static final AtomicInteger RAW_COUNT = new AtomicInteger(); //Lines read from every source of every profile
     public static boolean CACHE_ONLY = false; //For testing use
+    public static boolean PARSE_CACHE = true; //Store parsed domains next to each cached source
+    public static int DOWNLOAD_THREADS = 16; //Number of sources to download and parse at once
+    public static int HOST_CONNECTIONS = 4; //Number of downloads from the same host at once
+    public static int WILDCARD_THREADS = Runtime.getRuntime().availableProcessors(); //Number of threads used to count subdomains
+    public static int WILDCARD_THRESHOLD = 50; //Number of subdomains required for a domain to become a wildcard
+    public static boolean XCHECK_ESTIMATE = false; //Estimate crosscheck overlaps using MinHash instead of counting them exactly
+    private static final int MINHASH_SKETCH_SIZE = 256;
+    public static final ArrayList<OutputFormat> EXTRA_FORMATS = new ArrayList<>(); //Formats written from the wildcard list in addition to the defaults
+    public static boolean COMPRESS_OUTPUT = false; //Also write a gzip copy of each blocklist output
+    public static boolean COMPILED_OUTPUT = false; //Also write the wildcard list as a CompiledBlocklist
+    public static RunReport REPORT = new RunReport(); //Timings and counters written to the -report.json output
+    public static boolean REPORT_PROMETHEUS = false; //Also write the report in the Prometheus text format
+    public static boolean DAEMON = false; //Keep running, rebuilding on a schedule and answering lookups over HTTP
+    public static int DAEMON_PORT = 8053; //Loopback port of the lookup endpoint
+    public static int DAEMON_INTERVAL = 360; //Minutes between refreshes
+    public static boolean MERGE_SORT = false; //Merge sorted runs of each source instead of interning them all and sorting the result
+    public static final ArrayList<String[]> PROFILES = new ArrayList<>(); //Blocklists config and output of each additional profile
 
     public static void main(String[] args) {
         System.out.println("Simple Hosts Merger");
         System.out.println("Copyright 2015-2022 Divested Computing Group");
         System.out.println("License: AGPL-3.0-or-later");
         System.out.println("Source Code: https://codeberg.org/divested/simple_hosts_merger\n");
-        if (args.length != 4) {
+        ArrayList<String> positionalArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                parseOption(arg);
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+        if (positionalArgs.size() != 4) {
             System.out.println("Four arguments required: exclusion file, blocklists config (format: link,license;\\n), output file, cache dir");
+            System.out.println("Options: --threads=N (concurrent downloads, default " + DOWNLOAD_THREADS + "), --host-connections=N (concurrent downloads per host, default " + HOST_CONNECTIONS + "),");
+            System.out.println("\t--cache-only, --no-parse-cache,");
+            System.out.println("\t--wildcard-threads=N (default " + WILDCARD_THREADS + "), --wildcard-threshold=N (subdomains per wildcard, default " + WILDCARD_THRESHOLD + "),");
+            System.out.println("\t--xcheck-estimate (approximate crosscheck for very large configs),");
+            System.out.println("\t--formats=unbound,rpz (additional output formats), --compress (also write .gz outputs),");
+            System.out.println("\t--compiled (also write a memory mappable binary list for CompiledBlocklist lookups),");
+            System.out.println("\t--report-prometheus (also write the run report for the Prometheus textfile collector),");
+            System.out.println("\t--merge=intern|sort (merge engine, sort merges per source sorted runs, default intern),");
+            System.out.println("\t--profile=CONFIG,OUTPUT (also build the blocklists config to the output file, sharing downloads, repeatable),");
+            System.out.println("\t--daemon (keep running and serve lookups), --daemon-port=N (default " + DAEMON_PORT + "), --daemon-interval=MINUTES (refresh interval, default " + DAEMON_INTERVAL + ")");
+            System.out.println("Zip and 7z sources are read in full, or only the entry named after a # at the end of their link");
+            System.out.println("Allowlist entries starting with *. exclude every subdomain, starting with . the domain itself as well");
             System.exit(1);
         }
+        args = positionalArgs.toArray(new String[0]);
+
+        if (DAEMON) {
+            Daemon.run(args);
+        } else if (build(args, null) == null) {
+            System.exit(1);
+        }
+    }
+
+    //Runs the whole pipeline and writes out every output, returns what was built or null if the inputs are missing
+    //If nothing changed since previous it is returned as is and no outputs are written
+    public static BlocklistSnapshot build(String[] args, BlocklistSnapshot previous) {
+        //Every build starts from empty state, a published snapshot keeps the store and lists it was built from
+        arrWildcardExceptions.clear();
+        arrWildcardBlock.clear();
+        RAW_COUNT.set(0);
+        REPORT = new RunReport();
 
         //Get the allowlists
+        REPORT.startPhase("allowlist");
         final Set<String> arrAllowlist = new HashSet<>();
         File allowlist = new File(args[0]);
+        ALLOWLIST_SUFFIXES = new DomainSuffixTrie();
         if (allowlist.exists()) {
-            arrAllowlist.addAll(readFileIntoArray(allowlist));
+            //*.example.com excludes every subdomain, .example.com excludes the domain itself as well
+            for (String domain : readFileIntoArray(allowlist)) {
+                if (domain.startsWith("*.")) {
+                    ALLOWLIST_SUFFIXES.add(domain.substring(2));
+                } else if (domain.startsWith(".")) {
+                    ALLOWLIST_SUFFIXES.add(domain.substring(1));
+                    arrAllowlist.add(domain.substring(1));
+                } else {
+                    arrAllowlist.add(domain);
+                }
+            }
             final Set<String> arrAllowlistWWW = new HashSet<>();
             for(String domain : arrAllowlist) {
                 if (!domain.startsWith("www.")) {
@@ -68,10 +123,10 @@ public class Main {
                 }
             }
             arrAllowlist.addAll(arrAllowlistWWW);
-            System.out.println("Loaded " + arrAllowlist.size() + " excluded domains");
+            System.out.println("Loaded " + arrAllowlist.size() + " excluded domains" + (ALLOWLIST_SUFFIXES.size() > 0 ? " and " + ALLOWLIST_SUFFIXES.size() + " excluded suffixes" : ""));
         } else {
             System.out.println("Allowlist file doesn't exist!");
-            System.exit(1);
+            return null;
         }
         File allowListWildcards = new File("allowlist-wildcards.txt"); //TODO: remove me, replaced by dnsrm
         if (allowListWildcards.exists()) {
@@ -82,32 +137,35 @@ public class Main {
             arrWildcardBlock.addAll(readFileIntoArray(blockListWildcards));
         }
         File publicSuffixList = new File("public_suffix_list.dat");
-        if (publicSuffixList.exists()) {
-            arrWildcardExceptions.addAll(readFileIntoArray(publicSuffixList));
-        }
+        PUBLIC_SUFFIXES = publicSuffixList.exists() ? PublicSuffixList.load(publicSuffixList) : new PublicSuffixList();
         arrWildcardExceptions.addAll(arrAllowlist);
         System.out.println("Loaded " + arrWildcardExceptions.size() + " excluded wildcards");
 
-        //Get the blocklists
-        ArrayList<String> arrBlocklists = new ArrayList<String>();
-        File blocklists = new File(args[1]);
-        if (blocklists.exists()) {
-            try {
-                Scanner scanner = new Scanner(blocklists);
-                while (scanner.hasNext()) {
-                    String line = scanner.nextLine();
-                    if (line.startsWith("http") && line.contains(",") && line.endsWith(";") && !line.startsWith("#")) {
-                        arrBlocklists.add(line.replaceAll(";", ""));
+        //Get the blocklists of each profile, the one given as arguments first
+        ArrayList<Profile> profiles = new ArrayList<>();
+        profiles.add(new Profile(new File(args[1]), args[2]));
+        for (String[] profile : PROFILES) {
+            profiles.add(new Profile(new File(profile[0]), profile[1]));
+        }
+        for (Profile profile : profiles) {
+            if (profile.config.exists()) {
+                try {
+                    Scanner scanner = new Scanner(profile.config);
+                    while (scanner.hasNext()) {
+                        String line = scanner.nextLine();
+                        if (line.startsWith("http") && line.contains(",") && line.endsWith(";") && !line.startsWith("#")) {
+                            profile.blocklists.add(line.replaceAll(";", ""));
+                        }
                     }
+                    scanner.close();
+                    System.out.println("Loaded " + profile.blocklists.size() + " blocklist sources" + (profiles.size() > 1 ? " for " + profile.output : ""));
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
                 }
-                scanner.close();
-                System.out.println("Loaded " + arrBlocklists.size() + " blocklist sources");
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            } else {
+                System.out.println("Blocklists file " + profile.config + " doesn't exist!");
+                return null;
             }
-        } else {
-            System.out.println("Blocklists file doesn't exist!");
-            System.exit(1);
         }
 
         //Get the cache dir
@@ -117,71 +175,313 @@ public class Main {
         }
 
         //Process the blocklists
-        Set<String> arrDomains = new HashSet<>();
-        for (String list : arrBlocklists) {
-            String url = list.split(",")[0];
+        //Sources are downloaded and parsed concurrently, each only once however many profiles list it
+        REPORT.startPhase("download_parse");
+        //Downloads from one host beyond its connection limit wait without holding a thread, parsing starts once its download freed the host
+        ExecutorService threadPoolExecutorDownload = Executors.newFixedThreadPool(DOWNLOAD_THREADS);
+        SourceDownloader.HostLimiter hostLimiter = new SourceDownloader.HostLimiter(threadPoolExecutorDownload, HOST_CONNECTIONS);
+        LinkedHashMap<String, Future<DomainStore>> listResults = new LinkedHashMap<>();
+        LinkedHashMap<String, RunReport.Source> listReports = new LinkedHashMap<>();
+        for (Profile profile : profiles) {
+            for (String list : profile.blocklists) {
+                String url = list.split(",")[0];
+                if (!listResults.containsKey(url)) {
+                    RunReport.Source listReport = REPORT.addSource(url);
+                    listReports.put(url, listReport);
+                    listResults.put(url, hostLimiter.submit(url, () -> downloadBlocklist(url, cacheDir, listReport))
+                            .thenApplyAsync(out -> {
+                                try {
+                                    return parseBlocklist(url, out, listReport);
+                                } catch (Exception e) {
+                                    throw new CompletionException(e);
+                                }
+                            }, threadPoolExecutorDownload));
+                }
+            }
+        }
+        HashMap<String, DomainStore> listStores = new HashMap<>();
+        for (Map.Entry<String, Future<DomainStore>> listResult : listResults.entrySet()) {
+            try {
+                listStores.put(listResult.getKey(), listResult.getValue().get());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        listResults.clear();
+        threadPoolExecutorDownload.shutdown();
+        ArrayList<File> inputFiles = new ArrayList<>(Arrays.asList(allowlist, allowListWildcards, blockListWildcards, publicSuffixList));
+        for (Profile profile : profiles) {
+            inputFiles.add(profile.config);
+        }
+        String inputs = getInputsStamp(cacheDir, new ArrayList<>(listReports.values()), inputFiles.toArray(new File[0]));
+        if (previous != null && inputs.equals(previous.getInputs())) {
+            System.out.println("No changes since generation " + previous.getGeneration());
+            return previous;
+        }
+        REPORT.endPhase();
+
+        //Each profile merges, sorts and writes out its own sources, in parallel with the others
+        long generation = previous == null ? 1 : previous.getGeneration() + 1;
+        ExecutorService threadPoolExecutorProfiles = Executors.newFixedThreadPool(profiles.size());
+        ArrayList<Future<BlocklistSnapshot>> profileResults = new ArrayList<>();
+        for (Profile profile : profiles) {
+            profileResults.add(threadPoolExecutorProfiles.submit(() -> buildProfile(profile, listStores, listReports, arrAllowlist, inputs, generation, profiles.size() > 1)));
+        }
+        BlocklistSnapshot[] snapshots = new BlocklistSnapshot[profiles.size()];
+        for (int count = 0; count < profiles.size(); count++) {
             try {
-                //Download the file
-                String encodedName = byteArrayToHexString(MessageDigest.getInstance("MD5").digest(url.getBytes(StandardCharsets.UTF_8)));
-                System.out.println("Processing " + url + " / " + encodedName);
-                File out = new File(cacheDir, encodedName + identifyFileType(url));
-                downloadFile(url, out.toPath());
-                //Parse the file
-                HashSet<String> listResult = new HashSet<>();
-                listResult.addAll(readHostsFileIntoArray(out));
-                listMap.put(url, listResult);
-                arrDomains.addAll(listResult);
+                snapshots[count] = profileResults.get(count).get();
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+        threadPoolExecutorProfiles.shutdown();
+        return snapshots[0];
+    }
 
-        //Remove excluded entries
-        int preSize = arrDomains.size();
-        ArrayList<String> arrDomainsRemoved = new ArrayList<>();
-        for (String domainToRemove : arrAllowlist) {
-            if (arrDomains.remove(domainToRemove)) {
-                arrDomainsRemoved.add(domainToRemove);
+    //Everything after downloading and parsing for a single profile, the per source stores are only read so profiles can share them
+    //concurrent is set when other profiles are built at the same time
+    public static BlocklistSnapshot buildProfile(Profile profile, Map<String, DomainStore> listStores, Map<String, RunReport.Source> listReports, Set<String> arrAllowlist, String inputs, long generation, boolean concurrent) {
+        RunReport report = new RunReport(REPORT, concurrent);
+        ArrayList<String> arrBlocklists = profile.blocklists;
+        ArrayList<DomainStore> stores = new ArrayList<>();
+        for (String list : arrBlocklists) {
+            stores.add(listStores.get(list.split(",")[0]));
+        }
+        MergedDomains merged = MERGE_SORT
+                ? MergedDomains.sortedRuns(stores, arrAllowlist, ALLOWLIST_SUFFIXES, report)
+                : MergedDomains.intern(stores, arrAllowlist, ALLOWLIST_SUFFIXES, report);
+        stores.clear();
+        DomainStore domainStore = merged.store; //Every domain read from any source of the profile, each stored once
+        HashMap<String, int[]> listMap = new HashMap<>(); //Sorted domainStore IDs of each source
+        int rawCount = 0;
+        for (int count = 0; count < arrBlocklists.size(); count++) {
+            String url = arrBlocklists.get(count).split(",")[0];
+            RunReport.Source listReport = report.addSource(listReports.get(url));
+            if (merged.listIds[count] == null) {
+                continue;
             }
+            listMap.put(url, merged.listIds[count]);
+            listReport.domainsNew = merged.domainsNew[count];
+            rawCount += listReport.linesRead;
         }
-        Collections.sort(arrDomainsRemoved);
-        System.out.println("Removed " + (preSize - arrDomains.size()) + " excluded entries");
+        //Every domain in the store came from a source, so the store itself is the merged set
+        int mergedCount = domainStore.size();
+        ArrayList<String> arrDomainsRemoved = merged.removed;
+        System.out.println("Removed " + arrDomainsRemoved.size() + " excluded entries from " + profile.output);
+        int[] arrDomains = merged.kept;
+        int[] arrDomainsSorted = merged.sorted;
 
-        //Sorting
-        ArrayList<String> arrDomainsSorted = new ArrayList<>(arrDomains);
-        Collections.sort(arrDomainsSorted);
-        ArrayList<String> arrDomainsWildcardsSorted = new ArrayList<>(wildcardOptimizer(arrDomains));
-        Collections.sort(arrDomainsWildcardsSorted);
-        System.out.println("Processed " + arrDomains.size() + " domains");
+        report.startPhase("wildcards");
+        int[] arrDomainsWildcardsSorted = wildcardOptimizer(domainStore, arrDomains);
+        if (MERGE_SORT) {
+            arrDomainsWildcardsSorted = MergedDomains.sortAppended(domainStore, arrDomainsWildcardsSorted, mergedCount);
+        } else {
+            domainStore.sort(arrDomainsWildcardsSorted);
+        }
+        System.out.println("Processed " + arrDomains.length + " domains for " + profile.output);
 
         //Get the output file
-        writeOut(new File(args[2]), arrBlocklists, arrDomainsSorted, 0, arrDomainsSorted.size());
-        writeOut(new File(args[2] + "-domains"), arrBlocklists, arrDomainsSorted, 1, arrDomainsSorted.size());
-        writeOut(new File(args[2] + "-wildcards"), arrBlocklists, arrDomainsWildcardsSorted, 0, arrDomainsSorted.size());
-        writeOut(new File(args[2] + "-domains-wildcards"), arrBlocklists, arrDomainsWildcardsSorted, 1, arrDomainsSorted.size());
-        writeOut(new File(args[2] + "-dnsmasq"), arrBlocklists, arrDomainsWildcardsSorted, 2, arrDomainsSorted.size());
-        writeArrayToFile(new File(args[2] + "-removed"), arrDomainsRemoved);
-        generateCrossCheck(new File(args[2] + "-xcheck"));
+        report.startPhase("output");
+        File manifestFile = new File(profile.output + "-manifest.json");
+        BuildManifest manifest = new BuildManifest(manifestFile);
+        LinkedHashMap<File, OutputFormat> outputs = new LinkedHashMap<>();
+        outputs.put(new File(profile.output), OutputFormat.HOSTS);
+        outputs.put(new File(profile.output + "-domains"), OutputFormat.DOMAINS);
+        boolean written = writeOut(arrBlocklists, rawCount, domainStore, arrDomainsSorted, arrDomainsSorted.length, outputs);
+        LinkedHashMap<File, OutputFormat> outputsWildcards = new LinkedHashMap<>();
+        outputsWildcards.put(new File(profile.output + "-wildcards"), OutputFormat.HOSTS);
+        outputsWildcards.put(new File(profile.output + "-domains-wildcards"), OutputFormat.DOMAINS);
+        outputsWildcards.put(new File(profile.output + "-dnsmasq"), OutputFormat.DNSMASQ);
+        for (OutputFormat format : EXTRA_FORMATS) {
+            outputsWildcards.put(new File(profile.output + format.getFileSuffix()), format);
+        }
+        boolean writtenWildcards = writeOut(arrBlocklists, rawCount, domainStore, arrDomainsWildcardsSorted, arrDomainsSorted.length, outputsWildcards);
+        if (COMPILED_OUTPUT) {
+            CompiledBlocklist.write(new File(profile.output + "-compiled.bin"), domainStore, arrDomainsWildcardsSorted);
+        }
+        report.startPhase("diff");
+        if (written) {
+            writeDiff(manifest, new File(profile.output + "-domains"));
+        }
+        if (writtenWildcards) {
+            writeDiff(manifest, new File(profile.output + "-domains-wildcards"));
+        }
+        ArrayList<File> outputFiles = new ArrayList<>(outputs.keySet());
+        outputFiles.addAll(outputsWildcards.keySet());
+        for (File output : outputFiles) {
+            manifest.addOutput(output);
+            if (COMPRESS_OUTPUT) {
+                manifest.addOutput(new File(output + ".gz"));
+            }
+        }
+        if (COMPILED_OUTPUT) {
+            manifest.addOutput(new File(profile.output + "-compiled.bin"));
+        }
+        writeArrayToFile(manifestFile, manifest.toJson());
+        report.setCount("input", rawCount);
+        report.setCount("merged", mergedCount);
+        report.setCount("removed", arrDomainsRemoved.size());
+        report.setCount("result", arrDomainsSorted.length);
+        report.setCount("wildcards", arrDomainsWildcardsSorted.length);
+        writeArrayToFile(new File(profile.output + "-removed"), arrDomainsRemoved);
+        report.startPhase("crosscheck");
+        generateCrossCheck(new File(profile.output + "-xcheck"), domainStore, listMap);
+        report.endPhase();
+
+        writeArrayToFile(new File(profile.output + "-report.json"), report.toJson());
+        if (REPORT_PROMETHEUS) {
+            writeArrayToFile(new File(profile.output + "-report.prom"), report.toPrometheus());
+        }
+
+        LinkedHashMap<String, int[]> sources = new LinkedHashMap<>();
+        for (String list : arrBlocklists) {
+            String url = list.split(",")[0];
+            if (listMap.containsKey(url)) {
+                sources.put(url, listMap.get(url));
+            }
+        }
+        return new BlocklistSnapshot(generation, inputs, domainStore, arrDomainsSorted.length, arrDomainsWildcardsSorted, sources, arrAllowlist, ALLOWLIST_SUFFIXES);
     }
 
-    public static void generateCrossCheck(File out) {
-        System.out.println("Generating crosscheck results");
+    //Size and modification time of every file the build reads, equal stamps mean the build would produce the same outputs
+    public static String getInputsStamp(File cacheDir, List<RunReport.Source> sources, File... files) {
+        StringBuilder stamp = new StringBuilder();
+        for (File file : files) {
+            stamp.append(file.getPath()).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+        }
+        for (RunReport.Source source : sources) {
+            if (source.cacheFile == null) {
+                stamp.append(source.url).append(":failed\n");
+                continue;
+            }
+            File cached = new File(cacheDir, source.cacheFile);
+            stamp.append(source.url).append(':').append(cached.length()).append(':').append(cached.lastModified()).append('\n');
+        }
+        return stamp.toString();
+    }
+
+    public static void parseOption(String option) {
+        String[] optionSplit = option.substring(2).split("=", 2);
+        try {
+            switch (optionSplit[0]) {
+                case "threads":
+                    DOWNLOAD_THREADS = Math.max(1, Integer.parseInt(optionSplit[1]));
+                    return;
+                case "host-connections":
+                    HOST_CONNECTIONS = Math.max(1, Integer.parseInt(optionSplit[1]));
+                    return;
+                case "cache-only":
+                    CACHE_ONLY = true;
+                    return;
+                case "no-parse-cache":
+                    PARSE_CACHE = false;
+                    return;
+                case "xcheck-estimate":
+                    XCHECK_ESTIMATE = true;
+                    return;
+                case "formats":
+                    for (String format : optionSplit[1].split(",")) {
+                        EXTRA_FORMATS.add(OutputFormat.fromName(format));
+                    }
+                    return;
+                case "compiled":
+                    COMPILED_OUTPUT = true;
+                    return;
+                case "compress":
+                    COMPRESS_OUTPUT = true;
+                    return;
+                case "wildcard-threads":
+                    WILDCARD_THREADS = Math.max(1, Integer.parseInt(optionSplit[1]));
+                    return;
+                case "report-prometheus":
+                    REPORT_PROMETHEUS = true;
+                    return;
+                case "merge":
+                    if (!optionSplit[1].equals("sort") && !optionSplit[1].equals("intern")) {
+                        break;
+                    }
+                    MERGE_SORT = optionSplit[1].equals("sort");
+                    return;
+                case "profile":
+                    String[] profile = optionSplit[1].split(",", 2);
+                    if (profile.length != 2 || profile[0].isEmpty() || profile[1].isEmpty()) {
+                        break;
+                    }
+                    PROFILES.add(profile);
+                    return;
+                case "daemon":
+                    DAEMON = true;
+                    return;
+                case "daemon-port":
+                    DAEMON_PORT = Integer.parseInt(optionSplit[1]);
+                    return;
+                case "daemon-interval":
+                    DAEMON_INTERVAL = Math.max(1, Integer.parseInt(optionSplit[1]));
+                    return;
+                case "wildcard-threshold":
+                    WILDCARD_THRESHOLD = Math.max(1, Integer.parseInt(optionSplit[1]));
+                    return;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.out.println("Invalid option: " + option);
+        System.exit(1);
+    }
+
+    //Returns the cached file of the source, downloading it first unless only the cache is used
+    public static File downloadBlocklist(String url, File cacheDir, RunReport.Source report) throws Exception {
+        String encodedName = byteArrayToHexString(MessageDigest.getInstance("MD5").digest(url.getBytes(StandardCharsets.UTF_8)));
+        System.out.println("Processing " + url + " / " + encodedName);
+        File out = new File(cacheDir, encodedName + identifyFileType(url));
+        report.cacheFile = out.getName();
+        long downloadStart = System.nanoTime();
+        downloadFile(url, out.toPath(), report);
+        report.downloadNanos = System.nanoTime() - downloadStart;
+        report.fileBytes = out.length();
+        return out;
+    }
+
+    //Parses the cached file of the source, unless the daemon still holds it from an earlier build
+    public static DomainStore parseBlocklist(String url, File out, RunReport.Source report) throws Exception {
+        DomainStore domains = DAEMON ? Daemon.getResident(out, report) : null;
+        if (domains != null) {
+            RAW_COUNT.addAndGet(report.linesRead);
+            System.out.println("\tKept " + domains.size() + " resident entries for " + out.getName());
+        } else {
+            String entry = url.contains("#") ? url.substring(url.indexOf('#') + 1) : null;
+            long parseStart = System.nanoTime();
+            domains = readHostsFileIntoArray(out, entry, report);
+            report.parseNanos = System.nanoTime() - parseStart;
+            if (DAEMON) {
+                Daemon.putResident(out, domains, report);
+            }
+        }
+        report.domainsAccepted = domains.size();
+        return domains;
+    }
+
+    public static void generateCrossCheck(File out, DomainStore domainStore, Map<String, int[]> listMap) {
+        System.out.println("Generating crosscheck results" + (XCHECK_ESTIMATE ? " (estimated)" : ""));
+        ArrayList<String> sources = new ArrayList<>(listMap.keySet());
+        int[][] sourceDomains = new int[sources.size()][];
+        for (int source = 0; source < sources.size(); source++) {
+            sourceDomains[source] = listMap.get(sources.get(source));
+        }
+        int[][] overlaps = XCHECK_ESTIMATE ? estimateOverlaps(sourceDomains) : countOverlaps(sourceDomains, domainStore.size());
+
         ArrayList<String> xcheckResult = new ArrayList<>();
-        for (Map.Entry<String, HashSet<String>> entry : listMap.entrySet()) {
-            xcheckResult.add(entry.getKey());
+        for (int source = 0; source < sources.size(); source++) {
+            xcheckResult.add(sources.get(source));
             xcheckResult.add("----------------------------------------------------------------");
             boolean matchFound = false;
-            for (Map.Entry<String, HashSet<String>> recurseEntry : listMap.entrySet()) {
-                if (!recurseEntry.getKey().equals(entry.getKey())) {
-                    int count = 0;
-                    for (String domain : entry.getValue()) {
-                        if (recurseEntry.getValue().contains(domain)) {
-                            count++;
-                        }
-                    }
-                    int percent = (int) ((100D / recurseEntry.getValue().size()) * count);
+            for (int recurseSource = 0; recurseSource < sources.size(); recurseSource++) {
+                if (recurseSource != source) {
+                    int count = overlaps[source][recurseSource];
+                    int percent = (int) ((100D / sourceDomains[recurseSource].length) * count);
                     if (count != 0 && percent > 0) {
-                        xcheckResult.add(count + "\t~" + percent + "%" + "\t\t" + recurseEntry.getKey());
+                        xcheckResult.add(count + "\t~" + percent + "%" + "\t\t" + sources.get(recurseSource));
                         matchFound = true;
                     }
                 }
@@ -192,85 +492,226 @@ public class Main {
             xcheckResult.add("\n");
         }
         writeArrayToFile(out, xcheckResult);
+
+        //Machine readable matrix, row and column order match the text output
+        ArrayList<String> xcheckMatrix = new ArrayList<>();
+        StringBuilder line = new StringBuilder("source,entries");
+        for (String source : sources) {
+            line.append(',').append(escapeCsv(source));
+        }
+        xcheckMatrix.add(line.toString());
+        for (int source = 0; source < sources.size(); source++) {
+            line.setLength(0);
+            line.append(escapeCsv(sources.get(source))).append(',').append(sourceDomains[source].length);
+            for (int recurseSource = 0; recurseSource < sources.size(); recurseSource++) {
+                line.append(',').append(overlaps[source][recurseSource]);
+            }
+            xcheckMatrix.add(line.toString());
+        }
+        writeArrayToFile(new File(out + ".csv"), xcheckMatrix);
     }
 
-    public static void writeOut(File fileOut, ArrayList<String> arrBlocklists, ArrayList<String> arrDomains, int mode, int trueCount) {
-        if (fileOut.exists()) {
-            fileOut.renameTo(new File(fileOut + ".bak"));
+    //Builds an index of which sources contain each domain and counts every pair of sources sharing it
+    //This costs the sum of the squared source counts of each domain instead of comparing every pair of sources
+    public static int[][] countOverlaps(int[][] sourceDomains, int domainCount) {
+        int[] indexStart = new int[domainCount + 1];
+        for (int[] domains : sourceDomains) {
+            for (int id : domains) {
+                indexStart[id + 1]++;
+            }
         }
-        //Write the file
-        try {
-            PrintWriter writer = new PrintWriter(fileOut, "UTF-8");
-            writer.println("#");
-            writer.println("#Created using Simple Hosts Merger");
-            writer.println("#Simple Hosts Merger is licensed AGPL-3.0-or-later and available via https://codeberg.org/divested/simple_hosts_merger");
-            writer.println("#Last Updated: " + dateFormat.format(Calendar.getInstance().getTime()));
-            writer.println("#Number of Entries:");
-            writer.println("#\tInput Count: " + RAW_COUNT);
-            writer.println("#\tResult Count: " + trueCount);
-            if (trueCount != arrDomains.size()) {
-                writer.println("#\tAfter Wildcards: " + arrDomains.size());
-            }
-            writer.println("#");
-            writer.println("#Created from the following lists");
-            writer.println("#All attempts have been made to ensure accuracy of the corresponding license files and their compatibility.");
-            writer.println("#If you would like your list removed from this list please email us at webmaster@[THIS DOMAIN]");
-            writer.println("#");
-            for (String list : arrBlocklists) {
-                String[] listS = list.split(",");
-                writer.println("#" + listS[1] + "\t\t- " + listS[0]);
-            }
-            writer.println("#\n");
-            for (String line : arrDomains) {
-                switch (mode) {
-                    case 0: //hosts
-                        writer.println("0.0.0.0 " + line);
-                        break;
-                    case 1: //domains only
-                        writer.println(line);
-                        break;
-                    case 2: //dnsmasq
-                        if (!line.startsWith("*.")) {
-                            writer.println("address=/" + line + "/#");
-                        }
+        for (int id = 0; id < domainCount; id++) {
+            indexStart[id + 1] += indexStart[id];
+        }
+        int[] index = new int[indexStart[domainCount]];
+        int[] indexEnd = Arrays.copyOf(indexStart, domainCount);
+        for (int source = 0; source < sourceDomains.length; source++) {
+            for (int id : sourceDomains[source]) {
+                index[indexEnd[id]++] = source;
+            }
+        }
+        int[][] overlaps = new int[sourceDomains.length][sourceDomains.length];
+        for (int id = 0; id < domainCount; id++) {
+            for (int position = indexStart[id]; position < indexStart[id + 1]; position++) {
+                int source = index[position];
+                overlaps[source][source]++;
+                for (int recursePosition = position + 1; recursePosition < indexStart[id + 1]; recursePosition++) {
+                    overlaps[source][index[recursePosition]]++;
+                    overlaps[index[recursePosition]][source]++;
+                }
+            }
+        }
+        return overlaps;
+    }
+
+    //Estimates each overlap from the Jaccard similarity of bottom-k MinHash sketches, the k smallest hashes of each source
+    //Every source refers to the same store, so a domain is identified by its ID and each one listed is hashed once
+    public static int[][] estimateOverlaps(int[][] sourceDomains) {
+        long[][] sketches = new long[sourceDomains.length][];
+        for (int source = 0; source < sourceDomains.length; source++) {
+            sketches[source] = getBottomHashes(sourceDomains[source], MINHASH_SKETCH_SIZE);
+        }
+        int[][] overlaps = new int[sourceDomains.length][sourceDomains.length];
+        for (int source = 0; source < sourceDomains.length; source++) {
+            overlaps[source][source] = sourceDomains[source].length;
+            for (int recurseSource = source + 1; recurseSource < sourceDomains.length; recurseSource++) {
+                if (sourceDomains[source].length == 0 || sourceDomains[recurseSource].length == 0) {
+                    continue;
+                }
+                //The k smallest hashes of the union are the k smallest of both sketches, the share found in both estimates the Jaccard similarity
+                long[] sketch = sketches[source];
+                long[] recurseSketch = sketches[recurseSource];
+                int position = 0;
+                int recursePosition = 0;
+                int union = 0;
+                int matches = 0;
+                while (union < MINHASH_SKETCH_SIZE && (position < sketch.length || recursePosition < recurseSketch.length)) {
+                    if (recursePosition == recurseSketch.length || (position < sketch.length && sketch[position] < recurseSketch[recursePosition])) {
+                        position++;
+                    } else if (position == sketch.length || recurseSketch[recursePosition] < sketch[position]) {
+                        recursePosition++;
+                    } else {
+                        position++;
+                        recursePosition++;
+                        matches++;
+                    }
+                    union++;
+                }
+                double jaccard = (double) matches / union;
+                int estimate = (int) Math.round(jaccard / (1 + jaccard) * (sourceDomains[source].length + sourceDomains[recurseSource].length));
+                estimate = Math.min(estimate, Math.min(sourceDomains[source].length, sourceDomains[recurseSource].length));
+                overlaps[source][recurseSource] = estimate;
+                overlaps[recurseSource][source] = estimate;
+            }
+        }
+        return overlaps;
+    }
+
+    //Returns the k smallest hashes of the IDs in ascending order, kept in a max-heap while scanning
+    //mix64 is a bijection so distinct IDs never share a hash
+    private static long[] getBottomHashes(int[] ids, int k) {
+        long[] heap = new long[Math.min(k, ids.length)];
+        int size = 0;
+        for (int id : ids) {
+            long hash = mix64(id * 0x9E3779B97F4A7C15L);
+            if (size < heap.length) {
+                int child = size++;
+                while (child > 0 && heap[(child - 1) / 2] < hash) {
+                    heap[child] = heap[(child - 1) / 2];
+                    child = (child - 1) / 2;
+                }
+                heap[child] = hash;
+            } else if (hash < heap[0]) {
+                int parent = 0;
+                while (2 * parent + 1 < size) {
+                    int child = 2 * parent + 1;
+                    if (child + 1 < size && heap[child + 1] > heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] <= hash) {
                         break;
+                    }
+                    heap[parent] = heap[child];
+                    parent = child;
                 }
+                heap[parent] = hash;
             }
-            writer.close();
-            System.out.println("Wrote out to " + fileOut);
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        Arrays.sort(heap);
+        return heap;
+    }
+
+    private static long mix64(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    public static String escapeCsv(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    //Diffs an output against the .bak left behind when this build replaced it, the previous build's version of it
+    public static void writeDiff(BuildManifest manifest, File output) {
+        OutputDiff diff = OutputDiff.write(new File(output + ".bak"), output, new File(output + OutputDiff.EXTENSION), manifest.getPreviousVersion(), manifest.getVersion());
+        if (diff != null) {
+            manifest.addDiff(output, diff);
         }
     }
 
-    public static void downloadFile(String url, Path out) {
+    //Returns false if any output could not be written, in which case none of them were replaced
+    //Only a failure while moving the finished files into place, after writing succeeded, can leave the earlier outputs replaced
+    public static boolean writeOut(ArrayList<String> arrBlocklists, DomainStore store, int[] arrDomains, int trueCount, Map<File, OutputFormat> outputs) {
+        return writeOut(arrBlocklists, RAW_COUNT.get(), store, arrDomains, trueCount, outputs);
+    }
+
+    //Streams the sorted domains once, writing every output format in the same pass
+    //rawCount is the number of lines read from the sources of arrBlocklists, for the header
+    public static boolean writeOut(ArrayList<String> arrBlocklists, int rawCount, DomainStore store, int[] arrDomains, int trueCount, Map<File, OutputFormat> outputs) {
+        ArrayList<String> header = new ArrayList<>();
+        header.add("#");
+        header.add("#Created using Simple Hosts Merger");
+        header.add("#Simple Hosts Merger is licensed AGPL-3.0-or-later and available via https://codeberg.org/divested/simple_hosts_merger");
+        header.add("#Last Updated: " + LocalDate.now().format(DateTimeFormatter.ISO_LOCAL_DATE));
+        header.add("#Number of Entries:");
+        header.add("#\tInput Count: " + rawCount);
+        header.add("#\tResult Count: " + trueCount);
+        if (trueCount != arrDomains.length) {
+            header.add("#\tAfter Wildcards: " + arrDomains.length);
+        }
+        header.add("#");
+        header.add("#Created from the following lists");
+        header.add("#All attempts have been made to ensure accuracy of the corresponding license files and their compatibility.");
+        header.add("#If you would like your list removed from this list please email us at webmaster@[THIS DOMAIN]");
+        header.add("#");
+        for (String list : arrBlocklists) {
+            String[] listS = list.split(",");
+            header.add("#" + listS[1] + "\t\t- " + listS[0]);
+        }
+        header.add("#\n");
+
+        ArrayList<OutputWriter> writers = new ArrayList<>();
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.setConnectTimeout(45000);
-            connection.setReadTimeout(45000);
-            connection.addRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; rv:91.0) Gecko/20100101 Firefox/91.0");
-            if (out.toFile().exists()) {
-                connection.setIfModifiedSince(out.toFile().lastModified());
-            }
-            if (out.toFile().exists() && CACHE_ONLY) {
-                System.out.println("\tUsing cached version");
-            } else {
-                connection.connect();
-                int res = connection.getResponseCode();
-                if (res != 304 && (res == 200 || res == 301 || res == 302)) {
-                    Files.copy(connection.getInputStream(), out, StandardCopyOption.REPLACE_EXISTING);
-                    System.out.println("\tSuccessfully downloaded");
+            for (Map.Entry<File, OutputFormat> output : outputs.entrySet()) {
+                writers.add(new OutputWriter(output.getKey(), output.getValue(), COMPRESS_OUTPUT));
+            }
+            for (OutputWriter writer : writers) {
+                for (String line : writer.getFormat().getPreamble(System.currentTimeMillis() / 1000)) {
+                    writer.writeLine(line);
+                }
+                for (String line : header) {
+                    writer.writeComment(line);
                 }
-                if (res == 304) {
-                    System.out.println("\tFile not changed");
+            }
+            for (int id : arrDomains) {
+                for (OutputWriter writer : writers) {
+                    writer.writeDomain(store, id);
                 }
-                connection.disconnect();
             }
+            //Every output is complete before the first one replaces its previous version
+            for (OutputWriter writer : writers) {
+                writer.finish();
+            }
+            for (OutputWriter writer : writers) {
+                writer.publish();
+            }
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            for (OutputWriter writer : writers) {
+                writer.abort();
+            }
+            return false;
         }
     }
 
+    public static void downloadFile(String url, Path out, RunReport.Source report) {
+        SourceDownloader.download(url, out, report);
+    }
+
     //Credit (CC BY-SA 2.5): https://stackoverflow.com/a/4895572
     public static String byteArrayToHexString(byte[] b) {
         StringBuilder result = new StringBuilder();
@@ -280,6 +721,7 @@ public class Main {
     }
 
     public static String identifyFileType(String url) {
+        url = url.split("#", 2)[0]; //An archive entry may be selected with #name
         String extension = ".txt";
         if (url.contains("=zip") || url.endsWith(".zip"))
             extension = ".zip";
@@ -293,19 +735,19 @@ public class Main {
     }
 
     public static void writeArrayToFile(File fileOut, ArrayList<String> contents) {
-        if (fileOut.exists()) {
-            fileOut.renameTo(new File(fileOut + ".bak"));
-        }
         //Write the file
+        OutputWriter writer = null;
         try {
-            PrintWriter writer = new PrintWriter(fileOut, "UTF-8");
+            writer = new OutputWriter(fileOut, OutputFormat.DOMAINS, false);
             for (String line : contents) {
-                writer.println(line);
+                writer.writeLine(line);
             }
-            writer.close();
-            System.out.println("Wrote out to " + fileOut);
+            writer.commit();
         } catch (Exception e) {
             e.printStackTrace();
+            if (writer != null) {
+                writer.abort();
+            }
         }
         contents.clear();
     }
@@ -327,60 +769,38 @@ public class Main {
         return out;
     }
 
-    public static ArrayList<String> readHostsFileIntoArray(File in) {
-        ArrayList<String> out = new ArrayList<>();
-        try {
-            Scanner fileIn = null;
-            if (identifyFileType(in.toString()).equals(".txt")) {//Plain text
-                fileIn = new Scanner(in);
-            }
-            if (identifyFileType(in.toString()).equals(".gz")) {//Decompress GunZip
-                fileIn = new Scanner(new GZIPInputStream(new FileInputStream(in)));
+    public static DomainStore readHostsFileIntoArray(File in) {
+        return readHostsFileIntoArray(in, null, new RunReport.Source(in.getName()));
+    }
+
+    //For zip and 7z files only the named entry is read, or all of them if null
+    public static DomainStore readHostsFileIntoArray(File in, String entry, RunReport.Source report) {
+        if (PARSE_CACHE) {
+            DomainStore cached = new DomainStore();
+            if (ParsedDomainCache.load(in, cached::intern, report)) {
+                report.parseCached = true;
+                RAW_COUNT.addAndGet(report.linesRead);
+                System.out.println("\tLoaded " + cached.size() + " parsed entries for " + in.getName());
+                return cached;
             }
-            while (fileIn.hasNext()) {
-                out.addAll(getDomainsFromString(fileIn.nextLine()));
-                RAW_COUNT++;
+        }
+        DomainStore out = new DomainStore();
+        try {
+            out = HostsFileReader.read(in, entry, report);
+            System.out.println("\tAdded " + out.size() + " entries from " + in.getName());
+            if (PARSE_CACHE) {
+                ParsedDomainCache.save(in, out, report);
             }
-            System.out.println("\tAdded " + out.size() + " entries");
         } catch (Exception e) {
             e.printStackTrace();
         }
+        RAW_COUNT.addAndGet(report.linesRead);
         return out;
     }
 
     public static Set<String> getDomainsFromString(String input) {
         Set<String> domains = new HashSet<>();
-
-        String line = input.toLowerCase();
-        if (!shouldConsiderString(line)) {
-            return domains;
-        }
-
-        String[] blankSplit = line
-                .replaceAll("[\\s,;]", "~")
-                .split("~");
-
-        Matcher matcher;
-        for (String aSpaceSplit : blankSplit) {
-            if (shouldConsiderString(line)) {
-                aSpaceSplit = aSpaceSplit
-                        .replaceAll("https://", "")
-                        .replaceAll("http://", "")
-                        .replaceAll("ftp://", "");
-                //.replaceAll("/.*", "");
-                matcher = hostnamePattern.matcher(aSpaceSplit);//Apply the pattern to the string
-                if (matcher.find()) {//Check if the string meets our requirements
-                    String matchedDomain = matcher.group();
-/*                    if(matchedDomain.startsWith("www.")) {
-                        domains.add(matchedDomain.substring(4));
-                    }*/
-                    domains.add(matchedDomain);
-                } else if (aSpaceSplit.contains("xn--") && !aSpaceSplit.contains("/host/") && !aSpaceSplit.startsWith("||")) {//Ugly
-                    domains.add(aSpaceSplit);
-                }
-            }
-        }
-
+        new DomainTokenizer().tokenize(input, (buffer, offset, length) -> domains.add(new String(buffer, offset, length, StandardCharsets.UTF_8)));
         return domains;
     }
 
@@ -394,105 +814,221 @@ public class Main {
                 && !line.startsWith("@");
     }
 
-    private static final ConcurrentLinkedQueue<Future<?>> futures = new ConcurrentLinkedQueue<>();
-
-    public static Set<String> wildcardOptimizer(Set<String> domains) {
+    //Returns the IDs of the domains not covered by a wildcard plus the wildcards themselves, which are added to the store
+    public static int[] wildcardOptimizer(DomainStore store, int[] domains) {
         Set<String> wildcards = new HashSet<>();
-        ConcurrentSkipListSet<String> domainsNew = new ConcurrentSkipListSet<>();
-        ConcurrentHashMap<String, AtomicInteger> occurrenceMap = new ConcurrentHashMap<>();
-        ThreadPoolExecutor threadPoolExecutorWork = new ThreadPoolExecutor(8, 8, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(4), new ThreadPoolExecutor.CallerRunsPolicy());
 
         // Count the occurrence of each entry with one level removed
-        for (String domain : domains) {
-            futures.add(threadPoolExecutorWork.submit(() -> {
-                String[] domainSplit = domain.split("\\.");
-                for (int shift = 1; shift < 20; shift++) {
-                    if (domainSplit.length > shift + 1) {
-                        String shifted = jankSplit(domain, shift);
-                        if (shifted.length() > 0) {
-                            occurrenceMap.putIfAbsent(shifted, new AtomicInteger());
-                            occurrenceMap.get(shifted).getAndIncrement();
-                        }
-                    }
-                }
-            }));
-        }
-        waitForThreadsComplete();
+        ParentCounts occurrenceMap = countParentOccurrences(store, domains);
 
         // Mark entries with count past X as a wildcard candidate
-        for (Map.Entry<String, AtomicInteger> domain : occurrenceMap.entrySet()) {
-            if (domain.getValue().get() >= 50) {
-                wildcards.add(domain.getKey());
+        for (int slot = 0; slot < occurrenceMap.table.length; slot++) {
+            int entry = occurrenceMap.table[slot] - 1;
+            if (entry >= 0 && occurrenceMap.counts[entry] >= WILDCARD_THRESHOLD) {
+                wildcards.add(new String(occurrenceMap.arena, occurrenceMap.offsets[entry], occurrenceMap.lengths[entry], StandardCharsets.UTF_8));
             }
         }
-        wildcards.addAll(arrWildcardBlock);
+        occurrenceMap = null;
+
+        //A counted wildcard at or above a public suffix would block every site below it, whoever owns them
+        int publicSuffixCount = wildcards.size();
+        wildcards.removeIf(PUBLIC_SUFFIXES::coversPublicSuffix);
+        publicSuffixCount -= wildcards.size();
+        //Manual wildcards may cover a public suffix, such as all of a TLD, but are never one themselves
+        //Only checked with a list loaded, the implicit * rule alone would make every manual TLD wildcard one
+        for (String wildcard : arrWildcardBlock) {
+            if (PUBLIC_SUFFIXES.size() > 0 && PUBLIC_SUFFIXES.isPublicSuffix(wildcard)) {
+                publicSuffixCount++;
+            } else {
+                wildcards.add(wildcard);
+            }
+        }
+        if (publicSuffixCount > 0) {
+            System.out.println("Skipped " + publicSuffixCount + " wildcards covering a public suffix");
+        }
 
         //Exclude removal of certain domains
         for (String exception : arrWildcardExceptions) {
             wildcards.remove(exception);
         }
+        wildcards.removeIf(wildcard -> ALLOWLIST_SUFFIXES.contains(wildcard) || ALLOWLIST_SUFFIXES.containsParentOf(wildcard));
 
         //Remove redundant wildcards
+        //A wildcard is redundant if a parent of it is also a wildcard, the trie finds this by walking each one from the TLD down
+        DomainSuffixTrie wildcardTrie = new DomainSuffixTrie();
+        for (String wildcard : wildcards) {
+            wildcardTrie.add(wildcard);
+        }
         Set<String> wildcardsNew = new HashSet<>();
-        wildcardsNew.addAll(wildcards);
         for (String wildcard : wildcards) {
-            for (String wildcardCheck : wildcards) {
-                if (!wildcard.equals(wildcardCheck) && wildcardCheck.endsWith("." + wildcard)) {
-                    wildcardsNew.remove(wildcardCheck);
-                }
+            if (!wildcardTrie.containsParentOf(wildcard)) {
+                wildcardsNew.add(wildcard);
             }
         }
         wildcards = null; //set null to prevent accidental use
 
         // Exclude all domains that would be matched by the wildcard and include the rest
-        domainsNew.addAll(domains);
-        for (String domain : domains) {
-            futures.add(threadPoolExecutorWork.submit(() -> {
-                for (String wildcard : wildcardsNew) {
-                    if (domain.endsWith("." + wildcard)) {
-                        domainsNew.remove(domain);
-                    }
-                }
-            }));
+        //Every redundant wildcard has a remaining parent, so checking against the full trie gives the same result
+        BitSet domainsNew = new BitSet();
+        byte[] arena = store.getArena();
+        for (int id : domains) {
+            if (!wildcardTrie.containsParentOf(arena, store.getOffset(id), store.getLength(id))) {
+                domainsNew.set(id);
+            }
         }
-        waitForThreadsComplete();
+        int keptCount = domainsNew.cardinality();
 
         //Add the wildcards
         for (String wildcard : wildcardsNew) {
-            domainsNew.add("*." + wildcard);
-            domainsNew.add(wildcard);
+            domainsNew.set(store.intern("*." + wildcard));
+            domainsNew.set(store.intern(wildcard));
         }
+        int[] result = domainsNew.stream().toArray();
 
-        threadPoolExecutorWork.shutdown();
-        System.out.println("Replaced " + (domains.size() - (domainsNew.size() - wildcardsNew.size())) + " domains with " + wildcardsNew.size() + " wildcards");
+        System.out.println("Replaced " + (domains.length - (result.length - wildcardsNew.size())) + " domains with " + wildcardsNew.size() + " wildcards");
 
-        return domainsNew;
+        return result;
     }
 
-    public static String jankSplit(String input, int afterOccurrence) {
-        StringBuilder result = new StringBuilder();
-        String[] split = input.split("\\.");
-        for (int count = 0; count < split.length; count++) {
-            if (count >= afterOccurrence) {
-                result.append(split[count]);
-                if (count != (split.length - 1)) {
-                    result.append(".");
+    //Counts how many domains each parent domain has below it, the domains are split into one batch per thread
+    //Each thread counts into its own table and the tables are merged once all batches are done
+    public static ParentCounts countParentOccurrences(DomainStore store, int[] domains) {
+        int batches = Math.max(1, Math.min(WILDCARD_THREADS, domains.length / 1024));
+        ExecutorService threadPoolExecutorWork = Executors.newFixedThreadPool(batches);
+        ArrayList<Future<ParentCounts>> batchResults = new ArrayList<>();
+        for (int batch = 0; batch < batches; batch++) {
+            int start = (int) ((long) domains.length * batch / batches);
+            int end = (int) ((long) domains.length * (batch + 1) / batches);
+            batchResults.add(threadPoolExecutorWork.submit(() -> {
+                ParentCounts occurrenceMap = new ParentCounts(store.getArena(), (end - start) * 2);
+                for (int count = start; count < end; count++) {
+                    countParents(store, domains[count], occurrenceMap);
                 }
-            }
+                return occurrenceMap;
+            }));
         }
-        return result.toString();
-    }
-
-    private static void waitForThreadsComplete() {
+        ParentCounts occurrenceMap = null;
         try {
-            for (Future<?> future : futures) {
-                future.get();
-                futures.remove(future);
+            for (Future<ParentCounts> batchResult : batchResults) {
+                ParentCounts batchMap = batchResult.get();
+                if (occurrenceMap == null) {
+                    occurrenceMap = batchMap;
+                } else {
+                    occurrenceMap.addAll(batchMap);
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        futures.clear();
+        threadPoolExecutorWork.shutdown();
+        return occurrenceMap;
+    }
+
+    //Counts every parent of domain that still has at least two labels, up to 19 levels up
+    //Trailing dots are ignored and empty labels are kept, matching domain.split("\\.")
+    private static void countParents(DomainStore store, int id, ParentCounts occurrenceMap) {
+        byte[] arena = store.getArena();
+        int start = store.getOffset(id);
+        int end = start + store.getLength(id);
+        while (end > start && arena[end - 1] == '.') {
+            end--;
+        }
+        int labels = 1;
+        for (int position = start; position < end; position++) {
+            if (arena[position] == '.') {
+                labels++;
+            }
+        }
+        for (int shift = 1; shift < 20 && labels > shift + 1; shift++) {
+            while (arena[start] != '.') {
+                start++;
+            }
+            start++;
+            if (start < end) {
+                occurrenceMap.add(start, end - start, 1);
+            }
+        }
+    }
+
+    //A blocklists config and the output file it is built to
+    public static final class Profile {
+        public final File config;
+        public final String output;
+        public final ArrayList<String> blocklists = new ArrayList<>();
+
+        public Profile(File config, String output) {
+            this.config = config;
+            this.output = output;
+        }
+    }
+
+    //Parent domains referenced by their position in a DomainStore arena, so counting them copies nothing
+    public static final class ParentCounts {
+        private final byte[] arena;
+        private int[] offsets;
+        private int[] lengths;
+        private int[] hashes;
+        private int[] counts;
+        private int[] table; //Holds entry + 1 and 0 for empty slots
+        private int size = 0;
+
+        private ParentCounts(byte[] arena, int expectedSize) {
+            this.arena = arena;
+            int capacity = Integer.highestOneBit(Math.max(16, expectedSize) - 1) << 2;
+            table = new int[capacity];
+            offsets = new int[capacity / 2];
+            lengths = new int[capacity / 2];
+            hashes = new int[capacity / 2];
+            counts = new int[capacity / 2];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void add(int offset, int length, int count) {
+            add(offset, length, DomainStore.hash(arena, offset, length), count);
+        }
+
+        private void add(int offset, int length, int hash, int count) {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                int entry = table[slot] - 1;
+                if (hashes[entry] == hash && Arrays.equals(arena, offsets[entry], offsets[entry] + lengths[entry], arena, offset, offset + length)) {
+                    counts[entry] += count;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            offsets[size] = offset;
+            lengths[size] = length;
+            hashes[size] = hash;
+            counts[size] = count;
+            table[slot] = ++size;
+            if (size * 2 > table.length) {
+                table = new int[table.length * 2];
+                for (int entry = 0; entry < size; entry++) {
+                    int newSlot = hashes[entry] & (table.length - 1);
+                    while (table[newSlot] != 0) {
+                        newSlot = (newSlot + 1) & (table.length - 1);
+                    }
+                    table[newSlot] = entry + 1;
+                }
+            }
+        }
+
+        private void addAll(ParentCounts other) {
+            for (int entry = 0; entry < other.size; entry++) {
+                add(other.offsets[entry], other.lengths[entry], other.hashes[entry], other.counts[entry]);
+            }
+        }
     }
 
 }
@@ -0,0 +1,268 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+//The domains of a profile's sources merged into one store with the allowlist applied, and the IDs of those kept in sorted order
+//Two engines build it, selected with --merge:
+//intern adds every source to one store through its hash table, then sorts what is left after the allowlist
+//sort sorts each source on its own in parallel and merges the sorted runs k ways, so the store comes out with IDs in sorted order
+//and duplicates and allowlisted domains are dropped as they stream past without sorting the merged set
+//Its only hash lookups are the allowlist check of each distinct domain and the table store.index() builds afterwards
+public final class MergedDomains {
+
+    public final DomainStore store;
+    public final int[][] listIds; //Sorted IDs of each source in config order, null for sources that failed
+    public final int[] domainsNew; //Domains of each source not in any source before it
+    public final ArrayList<String> removed; //Allowlisted domains found in the sources, sorted
+    public final int[] kept; //IDs of the domains not removed, in ascending ID order
+    public final int[] sorted; //The same IDs sorted by domain
+
+    private MergedDomains(DomainStore store, int[][] listIds, int[] domainsNew, ArrayList<String> removed, int[] kept, int[] sorted) {
+        this.store = store;
+        this.listIds = listIds;
+        this.domainsNew = domainsNew;
+        this.removed = removed;
+        this.kept = kept;
+        this.sorted = sorted;
+    }
+
+    public static MergedDomains intern(List<DomainStore> sources, Set<String> allowlist, DomainSuffixTrie allowlistSuffixes, RunReport report) {
+        report.startPhase("merge");
+        DomainStore store = new DomainStore(1 << 20);
+        int[][] listIds = new int[sources.size()][];
+        int[] domainsNew = new int[sources.size()];
+        for (int source = 0; source < sources.size(); source++) {
+            DomainStore listResult = sources.get(source);
+            if (listResult == null) {
+                continue;
+            }
+            int sizeBefore = store.size();
+            int[] ids = new int[listResult.size()];
+            for (int id = 0; id < listResult.size(); id++) {
+                ids[id] = store.intern(listResult.getArena(), listResult.getOffset(id), listResult.getLength(id));
+            }
+            Arrays.sort(ids);
+            listIds[source] = ids;
+            domainsNew[source] = store.size() - sizeBefore;
+        }
+        //Every domain in the store came from a source, so the store itself is the merged set
+        int mergedCount = store.size();
+
+        //Remove excluded entries
+        report.startPhase("allowlist_removal");
+        BitSet excluded = new BitSet(mergedCount);
+        ArrayList<String> removed = new ArrayList<>();
+        for (String domainToRemove : allowlist) {
+            int id = store.find(domainToRemove);
+            if (id >= 0) {
+                excluded.set(id);
+                removed.add(domainToRemove);
+            }
+        }
+        if (allowlistSuffixes.size() > 0) {
+            //One pass over every domain, each is walked down the trie from its TLD without copying it
+            byte[] arena = store.getArena();
+            for (int id = excluded.nextClearBit(0); id < mergedCount; id = excluded.nextClearBit(id + 1)) {
+                if (allowlistSuffixes.containsParentOf(arena, store.getOffset(id), store.getLength(id))) {
+                    excluded.set(id);
+                    removed.add(store.getString(id));
+                }
+            }
+        }
+        Collections.sort(removed);
+        int[] kept = new int[mergedCount - excluded.cardinality()];
+        for (int id = excluded.nextClearBit(0), count = 0; id < mergedCount; id = excluded.nextClearBit(id + 1)) {
+            kept[count++] = id;
+        }
+
+        //Sorting
+        report.startPhase("sort");
+        int[] sorted = kept.clone();
+        store.sort(sorted);
+        return new MergedDomains(store, listIds, domainsNew, removed, kept, sorted);
+    }
+
+    public static MergedDomains sortedRuns(List<DomainStore> sources, Set<String> allowlist, DomainSuffixTrie allowlistSuffixes, RunReport report) {
+        report.startPhase("sort_runs");
+        int[][] runs = new int[sources.size()][];
+        IntStream.range(0, sources.size()).parallel().forEach(source -> {
+            if (sources.get(source) != null) {
+                runs[source] = sources.get(source).getSortedIds();
+            }
+        });
+
+        report.startPhase("merge");
+        DomainStore allowlistStore = new DomainStore(allowlist.size());
+        for (String domain : allowlist) {
+            allowlistStore.intern(domain);
+        }
+        int largest = 0;
+        int[][] listIds = new int[sources.size()][];
+        for (int source = 0; source < sources.size(); source++) {
+            if (runs[source] != null) {
+                largest = Math.max(largest, runs[source].length);
+                listIds[source] = new int[runs[source].length]; //Each entry of a run becomes exactly one ID
+            }
+        }
+        DomainStore store = new DomainStore(largest, false);
+        int[] domainsNew = new int[sources.size()];
+        ArrayList<String> removed = new ArrayList<>();
+        int[] kept = new int[Math.max(16, largest)];
+        int keptCount = 0;
+        //Min heap of the sources by the domain at the head of their run, whose place in its source's arena is kept at hand
+        Heads heads = new Heads(sources, runs);
+        while (heads.size > 0) {
+            int first = heads.heap[0];
+            byte[] arena = heads.arenas[first];
+            int offset = heads.offsets[first];
+            int length = heads.lengths[first];
+            int id = store.append(arena, offset, length);
+            //Every run holding this domain has it at its head now, so it is taken from all of them before moving on
+            //Sources only hold valid UTF-8, so equal domains have equal bytes
+            int firstSource = first;
+            do {
+                int source = heads.heap[0];
+                firstSource = Math.min(firstSource, source);
+                listIds[source][heads.positions[source]] = id;
+                heads.advance();
+            } while (heads.size > 0 && heads.headEquals(arena, offset, length));
+            domainsNew[firstSource]++;
+
+            if (allowlistStore.find(arena, offset, length) >= 0 || allowlistSuffixes.containsParentOf(arena, offset, length)) {
+                removed.add(store.getString(id));
+            } else {
+                if (keptCount == kept.length) {
+                    kept = Arrays.copyOf(kept, kept.length * 2);
+                }
+                kept[keptCount++] = id;
+            }
+        }
+        store.index(); //Wildcards and lookups are found through the hash table from here on
+        kept = Arrays.copyOf(kept, keptCount);
+        return new MergedDomains(store, listIds, domainsNew, removed, kept, kept);
+    }
+
+    //For IDs where all below sortedBelow are in sorted order already, such as the wildcard list of a store built by sortedRuns()
+    //Only the rest are sorted, then both are merged
+    public static int[] sortAppended(DomainStore store, int[] ids, int sortedBelow) {
+        int split = 0;
+        int[] tail = new int[ids.length];
+        int tailCount = 0;
+        for (int id : ids) {
+            if (id < sortedBelow) {
+                ids[split++] = id;
+            } else {
+                tail[tailCount++] = id;
+            }
+        }
+        tail = Arrays.copyOf(tail, tailCount);
+        store.sort(tail);
+        int[] result = new int[ids.length];
+        int head = 0;
+        int next = 0;
+        for (int position = 0; position < result.length; position++) {
+            if (next >= tailCount || (head < split && store.compare(ids[head], tail[next]) <= 0)) {
+                result[position] = ids[head++];
+            } else {
+                result[position] = tail[next++];
+            }
+        }
+        return result;
+    }
+
+    private static final class Heads {
+        private final int[][] runs;
+        private final DomainStore[] stores;
+        private final byte[][] arenas;
+        private final int[] positions;
+        private final int[] offsets;
+        private final int[] lengths;
+        private final int[] heap;
+        private int size = 0;
+
+        private Heads(List<DomainStore> sources, int[][] runs) {
+            this.runs = runs;
+            stores = sources.toArray(new DomainStore[0]);
+            arenas = new byte[stores.length][];
+            positions = new int[stores.length];
+            offsets = new int[stores.length];
+            lengths = new int[stores.length];
+            heap = new int[stores.length];
+            for (int source = 0; source < stores.length; source++) {
+                if (runs[source] != null && runs[source].length > 0) {
+                    arenas[source] = stores[source].getArena();
+                    load(source);
+                    heap[size++] = source;
+                }
+            }
+            for (int parent = size / 2 - 1; parent >= 0; parent--) {
+                siftDown(parent);
+            }
+        }
+
+        //Moves the source at the top of the heap on to its next domain, dropping it once its run is done
+        private void advance() {
+            int source = heap[0];
+            if (++positions[source] < runs[source].length) {
+                load(source);
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(0);
+        }
+
+        private boolean headEquals(byte[] arena, int offset, int length) {
+            int source = heap[0];
+            return Arrays.equals(arenas[source], offsets[source], offsets[source] + lengths[source], arena, offset, offset + length);
+        }
+
+        private void load(int source) {
+            int id = runs[source][positions[source]];
+            offsets[source] = stores[source].getOffset(id);
+            lengths[source] = stores[source].getLength(id);
+        }
+
+        private void siftDown(int position) {
+            if (size == 0) {
+                return;
+            }
+            int source = heap[position];
+            while (true) {
+                int child = position * 2 + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0) {
+                    child++;
+                }
+                if (compare(heap[child], source) >= 0) {
+                    break;
+                }
+                heap[position] = heap[child];
+                position = child;
+            }
+            heap[position] = source;
+        }
+
+        private int compare(int a, int b) {
+            return DomainStore.compare(arenas[a], offsets[a], lengths[a], arenas[b], offsets[b], lengths[b]);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+//Changes between two sorted domain outputs, usually a -domains output and the .bak the previous build left behind
+//Both are read a line at a time in step like the merge step of a merge sort, so neither is held in memory
+//Format: a comment header, then +domain for each added and -domain for each removed entry in sorted order
+public final class OutputDiff {
+
+    public static final String EXTENSION = ".diff";
+
+    private final File file;
+    private final long fromVersion;
+    private final long toVersion;
+    private int added = 0;
+    private int removed = 0;
+
+    private OutputDiff(File file, long fromVersion, long toVersion) {
+        this.file = file;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public int getAdded() {
+        return added;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    //Returns null and leaves any existing diff in place if either file is missing or not sorted
+    public static OutputDiff write(File previous, File current, File out, long fromVersion, long toVersion) {
+        if (!previous.exists() || !current.exists()) {
+            return null;
+        }
+        OutputWriter writer = null;
+        try (BufferedReader previousReader = Files.newBufferedReader(previous.toPath(), StandardCharsets.UTF_8);
+             BufferedReader currentReader = Files.newBufferedReader(current.toPath(), StandardCharsets.UTF_8)) {
+            writer = new OutputWriter(out, OutputFormat.DOMAINS, Main.COMPRESS_OUTPUT);
+            writer.writeComment("#Changes to " + current.getName() + " from version " + fromVersion + " to version " + toVersion);
+            writer.writeComment("#+ marks added entries, - marks removed entries");
+            OutputDiff diff = new OutputDiff(out, fromVersion, toVersion);
+            String previousEntry = nextEntry(previousReader, null);
+            String currentEntry = nextEntry(currentReader, null);
+            while (previousEntry != null || currentEntry != null) {
+                int order = previousEntry == null ? 1 : currentEntry == null ? -1 : previousEntry.compareTo(currentEntry);
+                if (order < 0) {
+                    writer.writeLine("-" + previousEntry);
+                    diff.removed++;
+                    previousEntry = nextEntry(previousReader, previousEntry);
+                } else if (order > 0) {
+                    writer.writeLine("+" + currentEntry);
+                    diff.added++;
+                    currentEntry = nextEntry(currentReader, currentEntry);
+                } else {
+                    previousEntry = nextEntry(previousReader, previousEntry);
+                    currentEntry = nextEntry(currentReader, currentEntry);
+                }
+            }
+            writer.commit();
+            System.out.println("\t" + diff.added + " added and " + diff.removed + " removed since version " + fromVersion);
+            return diff;
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (writer != null) {
+                writer.abort();
+            }
+            return null;
+        }
+    }
+
+    //Skips comments and blank lines, the merge is only correct if entries are strictly increasing so that is checked as well
+    private static String nextEntry(BufferedReader reader, String last) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (last != null && line.compareTo(last) <= 0) {
+                throw new IOException("Entries not sorted: " + line + " after " + last);
+            }
+            return line;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.nio.charset.StandardCharsets;
+
+//Line formats a sorted domain list can be written out as
+//Formats that block subdomains on their own skip the *. entries of the wildcard list
+public enum OutputFormat {
+    HOSTS("#", "0.0.0.0 ", "", false),
+    DOMAINS("#", "", "", false),
+    DNSMASQ("#", "address=/", "/#", true),
+    UNBOUND("#", "local-zone: \"", ".\" always_nxdomain", true),
+    RPZ(";", "", " CNAME .", false);
+
+    private final String commentPrefix;
+    private final byte[] entryPrefix;
+    private final byte[] entrySuffix;
+    private final boolean skipWildcards;
+
+    OutputFormat(String commentPrefix, String entryPrefix, String entrySuffix, boolean skipWildcards) {
+        this.commentPrefix = commentPrefix;
+        this.entryPrefix = entryPrefix.getBytes(StandardCharsets.UTF_8);
+        this.entrySuffix = entrySuffix.getBytes(StandardCharsets.UTF_8);
+        this.skipWildcards = skipWildcards;
+    }
+
+    public static OutputFormat fromName(String name) {
+        return valueOf(name.trim().toUpperCase(java.util.Locale.ROOT));
+    }
+
+    public String getFileSuffix() {
+        return "-" + name().toLowerCase(java.util.Locale.ROOT);
+    }
+
+    //Header comments are written with # and converted here for formats using another comment character
+    public String toComment(String headerLine) {
+        return headerLine.startsWith("#") ? commentPrefix + headerLine.substring(1) : headerLine;
+    }
+
+    //Lines required before any entries, such as the SOA record of a zone
+    public String[] getPreamble(long serial) {
+        if (this == RPZ) {
+            return new String[]{
+                    "$TTL 300",
+                    "@ IN SOA localhost. root.localhost. " + serial + " 43200 3600 86400 300",
+                    "  IN NS localhost."
+            };
+        }
+        return new String[0];
+    }
+
+    public byte[] getEntryPrefix() {
+        return entryPrefix;
+    }
+
+    public byte[] getEntrySuffix() {
+        return entrySuffix;
+    }
+
+    public boolean skipsWildcards() {
+        return skipWildcards;
+    }
+}
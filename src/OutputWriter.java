@@ -0,0 +1,177 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.GZIPOutputStream;
+
+//Buffered output file that is written to a temporary file and only moved into place once complete
+//The previous version is kept as .bak, the file itself is never missing or partially written
+public final class OutputWriter {
+
+    private static final byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] wildcardPrefix = "*.".getBytes(StandardCharsets.UTF_8);
+
+    private final File fileOut;
+    private final OutputFormat format;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+    private final Path tempCompressed;
+    private final OutputStream compressed;
+
+    public OutputWriter(File fileOut, OutputFormat format, boolean compress) throws IOException {
+        this.fileOut = fileOut;
+        this.format = format;
+        Path directory = fileOut.getAbsoluteFile().getParentFile().toPath();
+        //Not using createTempFile() so the output gets the usual permissions instead of owner only
+        String tempName = "." + fileOut.getName() + "." + Long.toHexString(System.nanoTime());
+        temp = directory.resolve(tempName + ".tmp");
+        channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        if (compress) {
+            tempCompressed = directory.resolve(tempName + ".gz.tmp");
+            compressed = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tempCompressed, StandardOpenOption.CREATE_NEW), 1 << 16), 1 << 16);
+        } else {
+            tempCompressed = null;
+            compressed = null;
+        }
+    }
+
+    public OutputFormat getFormat() {
+        return format;
+    }
+
+    public void writeLine(String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length + lineSeparator.length);
+        buffer.put(bytes);
+        buffer.put(lineSeparator);
+    }
+
+    public void writeComment(String headerLine) throws IOException {
+        writeLine(format.toComment(headerLine));
+    }
+
+    public void writeDomain(DomainStore store, int id) throws IOException {
+        if (format.skipsWildcards() && store.startsWith(id, wildcardPrefix)) {
+            return;
+        }
+        byte[] prefix = format.getEntryPrefix();
+        byte[] suffix = format.getEntrySuffix();
+        int length = store.getLength(id);
+        ensureCapacity(prefix.length + length + suffix.length + lineSeparator.length);
+        buffer.put(prefix);
+        buffer.put(store.getArena(), store.getOffset(id), length);
+        buffer.put(suffix);
+        buffer.put(lineSeparator);
+    }
+
+    //For binary outputs, written as is
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    //Flushes everything and replaces the output file, keeping the old one as .bak
+    public void commit() throws IOException {
+        finish();
+        publish();
+    }
+
+    //Flushes and closes the temporary files, both are complete once this returns and nothing has been replaced yet
+    public void finish() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+        if (compressed != null) {
+            compressed.close();
+        }
+    }
+
+    //Replaces the output file and its .gz with the finished temporary files, one right after the other
+    public void publish() throws IOException {
+        replace(temp, fileOut.toPath());
+        if (compressed != null) {
+            replace(tempCompressed, Paths.get(fileOut.getPath() + ".gz"));
+        }
+        System.out.println("Wrote out to " + fileOut);
+    }
+
+    //Discards the output, leaving the existing file untouched
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(temp);
+            if (compressed != null) {
+                compressed.close();
+                Files.deleteIfExists(tempCompressed);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+            if (buffer.capacity() < length) {
+                throw new IOException("Line too long: " + length);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        if (compressed != null) {
+            compressed.write(buffer.array(), 0, buffer.limit());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void replace(Path source, Path target) throws IOException {
+        if (Files.exists(target)) {
+            Path backup = Paths.get(target + ".bak");
+            Files.deleteIfExists(backup);
+            try {
+                Files.createLink(backup, target);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
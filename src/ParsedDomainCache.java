@@ -0,0 +1,173 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+//Sidecar file stored next to each cached source holding its parsed domains
+//Keyed by the size, modification time and SHA-256 of the source so unchanged sources can skip parsing
+//Format: magic, version, size, mtime, hash, raw, skipped and rejected line counts, domain count, then the sorted domains front coded as UTF-8
+public final class ParsedDomainCache {
+
+    public static final String EXTENSION = ".domains";
+    private static final int MAGIC = 0x53484d44; //SHMD
+    private static final int VERSION = 2; //Increase whenever the parser accepts different domains
+
+    //Feeds the cached domains of source to sink and fills in the line counts of report, returns false if there is no valid cache for it
+    //If false is returned the sink may have received some domains and its contents should be discarded
+    public static boolean load(File source, DomainTokenizer.DomainSink sink, RunReport.Source report) {
+        File sidecar = getSidecar(source);
+        if (!source.exists() || !sidecar.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 65536))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            long size = in.readLong();
+            long lastModified = in.readLong();
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            if (size != source.length()) {
+                return false;
+            }
+            if (lastModified != source.lastModified()) {
+                //Source was rewritten, still valid if the content is the same
+                if (!Arrays.equals(hash, hashFile(source))) {
+                    return false;
+                }
+                updateLastModified(sidecar, source.lastModified());
+            }
+            int rawCount = in.readInt();
+            int skippedCount = in.readInt();
+            int rejectedCount = in.readInt();
+            int domainCount = in.readInt();
+            byte[] domain = new byte[256];
+            for (int count = 0; count < domainCount; count++) {
+                int shared = readVarInt(in);
+                int suffix = readVarInt(in);
+                if (domain.length < shared + suffix) {
+                    domain = Arrays.copyOf(domain, Math.max(shared + suffix, domain.length * 2));
+                }
+                in.readFully(domain, shared, suffix);
+                sink.accept(domain, 0, shared + suffix);
+            }
+            report.linesRead = rawCount;
+            report.linesSkipped = skippedCount;
+            report.linesRejected = rejectedCount;
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public static void save(File source, DomainStore domains, RunReport.Source report) {
+        File sidecar = getSidecar(source);
+        Path temp = null;
+        try {
+            long size = source.length();
+            long lastModified = source.lastModified();
+            byte[] hash = hashFile(source);
+            if (size != source.length() || lastModified != source.lastModified()) {
+                return; //Source changed while hashing
+            }
+            int[] domainsSorted = domains.getSortedIds();
+            byte[] arena = domains.getArena();
+            temp = Files.createTempFile(sidecar.getParentFile().toPath(), sidecar.getName(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 65536))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+                out.write(hash);
+                out.writeInt(report.linesRead);
+                out.writeInt(report.linesSkipped);
+                out.writeInt(report.linesRejected);
+                out.writeInt(domainsSorted.length);
+                int previous = -1;
+                for (int current : domainsSorted) {
+                    int shared = 0;
+                    if (previous >= 0) {
+                        int max = Math.min(domains.getLength(previous), domains.getLength(current));
+                        while (shared < max && arena[domains.getOffset(previous) + shared] == arena[domains.getOffset(current) + shared]) {
+                            shared++;
+                        }
+                    }
+                    writeVarInt(out, shared);
+                    writeVarInt(out, domains.getLength(current) - shared);
+                    out.write(arena, domains.getOffset(current) + shared, domains.getLength(current) - shared);
+                    previous = current;
+                }
+            }
+            Files.move(temp, sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    public static File getSidecar(File source) {
+        return new File(source.getPath() + EXTENSION);
+    }
+
+    private static void updateLastModified(File sidecar, long lastModified) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(sidecar, "rw")) {
+            file.seek(16); //After magic, version and size
+            file.writeLong(lastModified);
+        }
+    }
+
+    public static byte[] hashFile(File file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[65536];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
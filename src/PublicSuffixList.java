@@ -0,0 +1,147 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+
+//Public Suffix List rules in a trie keyed by label, walked from the TLD down
+//Follows the algorithm at https://publicsuffix.org/list/: the matching rule with the most labels wins, exception rules win over all others
+//and a TLD not on the list is a public suffix by the implicit * rule
+//Safe for concurrent reads once loaded
+public final class PublicSuffixList {
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    //The list is UTF-8 whatever the platform charset is
+    public static PublicSuffixList load(File in) {
+        PublicSuffixList list = new PublicSuffixList();
+        try (BufferedReader reader = Files.newBufferedReader(in.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("//")) {
+                    list.addRule(line);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        System.out.println("Loaded " + list.size() + " public suffix rules");
+        return list;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //Only the first word of the line is the rule, the list has Unicode rules which are added in punycode as well
+    public void addRule(String line) {
+        String rule = line.trim().split("\\s", 2)[0].toLowerCase(Locale.ROOT);
+        if (rule.isEmpty()) {
+            return;
+        }
+        boolean exception = rule.startsWith("!");
+        if (exception) {
+            rule = rule.substring(1);
+        }
+        addRule(rule, exception);
+        try {
+            String ascii = IDN.toASCII(rule);
+            if (!ascii.equals(rule)) {
+                addRule(ascii, exception);
+            }
+        } catch (IllegalArgumentException e) {
+            //Left as Unicode only
+        }
+    }
+
+    private void addRule(String rule, boolean exception) {
+        String[] labels = rule.split("\\.");
+        Node node = root;
+        for (int label = labels.length - 1; label >= 0; label--) {
+            if (!exception) {
+                node.rulesBelow++;
+            }
+            node = node.children.computeIfAbsent(labels[label], key -> new Node());
+        }
+        if (exception) {
+            node.exception = true;
+        } else {
+            node.rule = true;
+        }
+        size++;
+    }
+
+    //Number of labels at the end of domain that are its public suffix
+    public int getPublicSuffixLabels(String domain) {
+        String[] labels = domain.split("\\.");
+        int[] longest = {1, 0}; //Longest matching rule starting with the implicit *, longest matching exception
+        match(root, labels, labels.length - 1, 0, longest);
+        return longest[1] > 0 ? longest[1] - 1 : longest[0];
+    }
+
+    public boolean isPublicSuffix(String domain) {
+        return domain.split("\\.").length <= getPublicSuffixLabels(domain);
+    }
+
+    //True if domain is a public suffix or has one below it, such as amazonaws.com above s3.amazonaws.com
+    //A wildcard for such a domain would block sites of unrelated owners
+    public boolean coversPublicSuffix(String domain) {
+        if (isPublicSuffix(domain)) {
+            return true;
+        }
+        String[] labels = domain.split("\\.");
+        Node node = root;
+        for (int label = labels.length - 1; label >= 0 && node != null; label--) {
+            node = node.children.get(labels[label]);
+        }
+        return node != null && node.rulesBelow > 0;
+    }
+
+    private static void match(Node node, String[] labels, int label, int depth, int[] longest) {
+        if (node.rule && depth > longest[0]) {
+            longest[0] = depth;
+        }
+        if (node.exception && depth > longest[1]) {
+            longest[1] = depth;
+        }
+        if (label < 0) {
+            return;
+        }
+        Node child = node.children.get(labels[label]);
+        if (child != null) {
+            match(child, labels, label - 1, depth + 1, longest);
+        }
+        Node wildcard = node.children.get("*");
+        if (wildcard != null) {
+            match(wildcard, labels, label - 1, depth + 1, longest);
+        }
+    }
+
+    private static final class Node {
+        private final HashMap<String, Node> children = new HashMap<>(4);
+        private boolean rule = false;
+        private boolean exception = false;
+        private int rulesBelow = 0; //Rules other than exceptions further down the trie
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+//Records the time and memory of each phase of a run and what happened to each source
+//Written out as JSON and optionally in the Prometheus text format so slow or bloated sources and regressions stand out
+public final class RunReport {
+
+    private final String started;
+    private final long startedNanos;
+    private final ArrayList<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final boolean trackPeaks;
+    private final ArrayList<Phase> phases = new ArrayList<>();
+    private final ArrayList<Source> sources = new ArrayList<>();
+    private final LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+    private Phase currentPhase = null;
+
+    public RunReport() {
+        started = Instant.now().toString();
+        startedNanos = System.nanoTime();
+        trackPeaks = true;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+            }
+        }
+    }
+
+    //Report of one profile, starting with the phases of shared so far
+    //The peaks of the heap pools are shared by the whole JVM and every phase resets them
+    //So when profiles are built concurrently their phases report no peak, and their heap after figures include each other
+    public RunReport(RunReport shared, boolean concurrent) {
+        trackPeaks = !concurrent;
+        synchronized (shared) {
+            started = shared.started;
+            startedNanos = shared.startedNanos;
+            heapPools.addAll(shared.heapPools);
+            phases.addAll(shared.phases);
+        }
+    }
+
+    //Ends the current phase, if any, and starts timing the next one
+    public synchronized void startPhase(String name) {
+        endPhase();
+        if (trackPeaks) {
+            for (MemoryPoolMXBean pool : heapPools) {
+                pool.resetPeakUsage();
+            }
+        }
+        currentPhase = new Phase(name, System.nanoTime());
+    }
+
+    public synchronized void endPhase() {
+        if (currentPhase == null) {
+            return;
+        }
+        currentPhase.nanos = System.nanoTime() - currentPhase.startNanos;
+        //Each pool peaks at its own time, so the sum is an upper bound of the heap used during the phase
+        if (trackPeaks) {
+            for (MemoryPoolMXBean pool : heapPools) {
+                currentPhase.peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+        } else {
+            currentPhase.peakHeapBytes = -1;
+        }
+        currentPhase.heapAfterBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        phases.add(currentPhase);
+        currentPhase = null;
+    }
+
+    //Sources are reported in the order they are added, each is only ever updated by the thread processing it
+    public synchronized Source addSource(String url) {
+        Source source = new Source(url);
+        sources.add(source);
+        return source;
+    }
+
+    //Adds a copy of a source from another report, so profiles can each fill in their own merge results
+    public synchronized Source addSource(Source shared) {
+        Source source = shared.copy();
+        sources.add(source);
+        return source;
+    }
+
+    public synchronized void setCount(String name, long value) {
+        counts.put(name, value);
+    }
+
+    public synchronized ArrayList<String> toJson() {
+        ArrayList<String> out = new ArrayList<>();
+        out.add("{");
+        out.add("  \"started\": " + jsonString(started) + ",");
+        out.add("  \"total_millis\": " + toMillis(System.nanoTime() - startedNanos) + ",");
+        out.add("  \"counts\": {");
+        int count = 0;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            out.add("    " + jsonString(entry.getKey()) + ": " + entry.getValue() + (++count < counts.size() ? "," : ""));
+        }
+        out.add("  },");
+        out.add("  \"phases\": [");
+        for (int phase = 0; phase < phases.size(); phase++) {
+            Phase current = phases.get(phase);
+            out.add("    {\"name\": " + jsonString(current.name)
+                    + ", \"millis\": " + toMillis(current.nanos)
+                    + ", \"peak_heap_bytes\": " + (current.peakHeapBytes < 0 ? "null" : current.peakHeapBytes)
+                    + ", \"heap_after_bytes\": " + current.heapAfterBytes
+                    + "}" + (phase + 1 < phases.size() ? "," : ""));
+        }
+        out.add("  ],");
+        out.add("  \"sources\": [");
+        for (int source = 0; source < sources.size(); source++) {
+            Source current = sources.get(source);
+            out.add("    {\"url\": " + jsonString(current.url)
+                    + ", \"cache_file\": " + jsonString(current.cacheFile)
+                    + ", \"http_status\": " + current.httpStatus
+                    + ", \"download_millis\": " + toMillis(current.downloadNanos)
+                    + ", \"download_bytes\": " + current.downloadBytes
+                    + ", \"transfer_bytes\": " + current.transferBytes
+                    + ", \"file_bytes\": " + current.fileBytes
+                    + ", \"download_error\": " + jsonString(current.downloadError)
+                    + ", \"parse_millis\": " + toMillis(current.parseNanos)
+                    + ", \"parse_cached\": " + current.parseCached
+                    + ", \"lines_read\": " + current.linesRead
+                    + ", \"lines_skipped\": " + current.linesSkipped
+                    + ", \"lines_rejected\": " + current.linesRejected
+                    + ", \"domains_accepted\": " + current.domainsAccepted
+                    + ", \"domains_new\": " + current.domainsNew
+                    + "}" + (source + 1 < sources.size() ? "," : ""));
+        }
+        out.add("  ]");
+        out.add("}");
+        return out;
+    }
+
+    public synchronized ArrayList<String> toPrometheus() {
+        ArrayList<String> out = new ArrayList<>();
+        addMetric(out, "run_duration_seconds", "Wall time of the whole run");
+        out.add(metricName("run_duration_seconds") + " " + toSeconds(System.nanoTime() - startedNanos));
+        addMetric(out, "domains", "Number of domains at each stage of the run");
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            out.add(metricName("domains") + "{stage=" + labelValue(entry.getKey()) + "} " + entry.getValue());
+        }
+        addMetric(out, "phase_duration_seconds", "Wall time of each phase");
+        for (Phase phase : phases) {
+            out.add(metricName("phase_duration_seconds") + "{phase=" + labelValue(phase.name) + "} " + toSeconds(phase.nanos));
+        }
+        addMetric(out, "phase_peak_heap_bytes", "Upper bound of the heap used during each phase, not reported for phases of profiles built concurrently");
+        for (Phase phase : phases) {
+            if (phase.peakHeapBytes < 0) {
+                continue;
+            }
+            out.add(metricName("phase_peak_heap_bytes") + "{phase=" + labelValue(phase.name) + "} " + phase.peakHeapBytes);
+        }
+        addSourceMetric(out, "source_http_status", "HTTP status of the last download attempt, 0 if none was made", source -> source.httpStatus);
+        addSourceMetric(out, "source_download_seconds", "Time spent downloading each source", source -> toSeconds(source.downloadNanos));
+        addSourceMetric(out, "source_download_bytes", "Bytes downloaded for each source, 0 if the cached copy was used", source -> source.downloadBytes);
+        addSourceMetric(out, "source_transfer_bytes", "Bytes received for each source before decompressing the transfer", source -> source.transferBytes);
+        addSourceMetric(out, "source_file_bytes", "Size of the cached copy of each source", source -> source.fileBytes);
+        addSourceMetric(out, "source_parse_seconds", "Time spent parsing each source", source -> toSeconds(source.parseNanos));
+        addSourceMetric(out, "source_lines_read", "Lines read from each source", source -> source.linesRead);
+        addSourceMetric(out, "source_lines_skipped", "Blank and comment lines of each source", source -> source.linesSkipped);
+        addSourceMetric(out, "source_lines_rejected", "Lines of each source without any valid domain", source -> source.linesRejected);
+        addSourceMetric(out, "source_domains_accepted", "Unique domains found in each source", source -> source.domainsAccepted);
+        addSourceMetric(out, "source_domains_new", "Domains not already provided by an earlier source", source -> source.domainsNew);
+        return out;
+    }
+
+    private interface SourceValue {
+        Object get(Source source);
+    }
+
+    private void addSourceMetric(ArrayList<String> out, String name, String help, SourceValue value) {
+        addMetric(out, name, help);
+        for (Source source : sources) {
+            out.add(metricName(name) + "{source=" + labelValue(source.url) + "} " + value.get(source));
+        }
+    }
+
+    private static void addMetric(ArrayList<String> out, String name, String help) {
+        out.add("# HELP " + metricName(name) + " " + help);
+        out.add("# TYPE " + metricName(name) + " gauge");
+    }
+
+    private static String metricName(String name) {
+        return "simple_hosts_merger_" + name;
+    }
+
+    private static String labelValue(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    static String jsonString(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder out = new StringBuilder("\"");
+        for (int position = 0; position < value.length(); position++) {
+            char c = value.charAt(position);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static String toSeconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+    }
+
+    private static final class Phase {
+        private final String name;
+        private final long startNanos;
+        private long nanos = 0;
+        private long peakHeapBytes = 0; //-1 if not tracked
+        private long heapAfterBytes = 0;
+
+        private Phase(String name, long startNanos) {
+            this.name = name;
+            this.startNanos = startNanos;
+        }
+    }
+
+    public static final class Source {
+        public final String url;
+        public String cacheFile = null;
+        public int httpStatus = 0;
+        public long downloadNanos = 0;
+        public long downloadBytes = 0;
+        public long transferBytes = 0; //Before the transfer encoding is removed
+        public long fileBytes = 0;
+        public String downloadError = null;
+        public long parseNanos = 0;
+        public boolean parseCached = false;
+        public int linesRead = 0;
+        public int linesSkipped = 0;
+        public int linesRejected = 0;
+        public int domainsAccepted = 0;
+        public int domainsNew = 0;
+
+        public Source(String url) {
+            this.url = url;
+        }
+
+        public Source copy() {
+            Source copy = new Source(url);
+            copy.cacheFile = cacheFile;
+            copy.httpStatus = httpStatus;
+            copy.downloadNanos = downloadNanos;
+            copy.downloadBytes = downloadBytes;
+            copy.transferBytes = transferBytes;
+            copy.fileBytes = fileBytes;
+            copy.downloadError = downloadError;
+            copy.parseNanos = parseNanos;
+            copy.parseCached = parseCached;
+            copy.linesRead = linesRead;
+            copy.linesSkipped = linesSkipped;
+            copy.linesRejected = linesRejected;
+            copy.domainsAccepted = domainsAccepted;
+            copy.domainsNew = domainsNew;
+            return copy;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+//Downloads sources into the cache over one shared HTTP/2 capable client so connections to the same host are reused
+//The ETag and Last-Modified of each cached file are kept in a .meta file next to it for conditional requests
+//Downloads go to a temporary file that only replaces the cached copy once complete
+//The request timeout only covers the response headers, a body that stops sending data is closed by a watchdog instead
+public final class SourceDownloader {
+
+    public static final String META_EXTENSION = ".meta";
+    private static final String userAgent = "Mozilla/5.0 (Windows NT 10.0; rv:91.0) Gecko/20100101 Firefox/91.0";
+    private static final Duration timeout = Duration.ofSeconds(45);
+    private static final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(timeout)
+            .build();
+    public static Duration READ_TIMEOUT = timeout; //Longest wait for more of a response body
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void download(String url, Path out, RunReport.Source report) {
+        File cached = out.toFile();
+        if (cached.exists() && Main.CACHE_ONLY) {
+            System.out.println("\tUsing cached version " + out.getFileName());
+            return;
+        }
+        Path temp = null;
+        try {
+            URI uri = URI.create(url.split("#", 2)[0]); //The fragment only selects an archive entry
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                    .timeout(timeout)
+                    .header("User-Agent", userAgent)
+                    .header("Accept-Encoding", "gzip");
+            Properties meta = readMeta(out);
+            if (cached.exists()) {
+                if (meta.getProperty("etag") != null) {
+                    request.header("If-None-Match", meta.getProperty("etag"));
+                }
+                request.header("If-Modified-Since", meta.getProperty("last-modified",
+                        DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(cached.lastModified()).atOffset(ZoneOffset.UTC))));
+            }
+
+            HttpResponse<InputStream> response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            int res = response.statusCode();
+            report.httpStatus = res;
+            try (WatchedInputStream body = new WatchedInputStream(response.body(), READ_TIMEOUT)) {
+                if (res == 304) {
+                    System.out.println("\tFile not changed " + out.getFileName());
+                    updateMeta(meta, response);
+                    writeMeta(out, meta);
+                } else if (res == 200) {
+                    //Not using createTempFile() so the cached file gets the usual permissions instead of owner only
+                    temp = out.resolveSibling("." + out.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+                    boolean gzip = response.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip");
+                    try (InputStream in = gzip ? new GZIPInputStream(body, 65536) : body;
+                         OutputStream fileOut = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        report.downloadBytes = in.transferTo(fileOut);
+                    }
+                    report.transferBytes = body.count;
+                    Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    temp = null;
+                    //Written after the file so a crash in between can only leave an outdated ETag, which just causes a full download
+                    meta.clear();
+                    updateMeta(meta, response);
+                    writeMeta(out, meta);
+                    System.out.println("\tSuccessfully downloaded " + out.getFileName());
+                } else {
+                    System.out.println("\tFailed to download " + out.getFileName() + ", HTTP " + res);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            report.downloadError = e.toString();
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    //Host part of a source URL, used to group downloads from the same server
+    public static String getHost(String url) {
+        try {
+            return String.valueOf(URI.create(url.split("#", 2)[0]).getHost());
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    public static File getMetaFile(Path cached) {
+        return new File(cached.toString() + META_EXTENSION);
+    }
+
+    private static void updateMeta(Properties meta, HttpResponse<?> response) {
+        response.headers().firstValue("ETag").ifPresent(etag -> meta.setProperty("etag", etag));
+        response.headers().firstValue("Last-Modified").ifPresent(lastModified -> meta.setProperty("last-modified", lastModified));
+    }
+
+    private static Properties readMeta(Path cached) {
+        Properties meta = new Properties();
+        File metaFile = getMetaFile(cached);
+        if (metaFile.exists()) {
+            try (InputStream in = new FileInputStream(metaFile)) {
+                meta.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return meta;
+    }
+
+    private static void writeMeta(Path cached, Properties meta) throws IOException {
+        File metaFile = getMetaFile(cached);
+        Path temp = metaFile.toPath().resolveSibling("." + metaFile.getName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                meta.store(out, null);
+            }
+            Files.move(temp, metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.toFile().delete();
+        }
+    }
+
+    //Runs downloads on a pool with at most a given number of them at once for each host
+    //Downloads over the limit wait in their host's queue instead of blocking a pool thread, so downloads from other hosts are not held up
+    public static final class HostLimiter {
+        private final ExecutorService pool;
+        private final int limit;
+        private final HashMap<String, Integer> running = new HashMap<>();
+        private final HashMap<String, ArrayDeque<Runnable>> waiting = new HashMap<>();
+
+        public HostLimiter(ExecutorService pool, int limit) {
+            this.pool = pool;
+            this.limit = limit;
+        }
+
+        //The future completes once the host's slot was handed on, work chained onto it does not count against the host
+        public <T> CompletableFuture<T> submit(String url, Callable<T> download) {
+            String host = getHost(url);
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable task = () -> {
+                try {
+                    T value = download.call();
+                    finished(host);
+                    result.complete(value);
+                } catch (Throwable e) {
+                    finished(host);
+                    result.completeExceptionally(e);
+                }
+            };
+            synchronized (this) {
+                int count = running.getOrDefault(host, 0);
+                if (count < limit) {
+                    running.put(host, count + 1);
+                    pool.execute(task);
+                } else {
+                    waiting.computeIfAbsent(host, key -> new ArrayDeque<>()).add(task);
+                }
+            }
+            return result;
+        }
+
+        //Starts the next waiting download of the host in the slot just freed
+        private synchronized void finished(String host) {
+            ArrayDeque<Runnable> queue = waiting.get(host);
+            Runnable next = queue == null ? null : queue.poll();
+            if (next != null) {
+                pool.execute(next);
+            } else {
+                running.put(host, running.get(host) - 1);
+            }
+        }
+    }
+
+    //Counts the bytes read and closes the stream once no data arrived for the given time
+    //Reads fail from then on, even those that would otherwise have returned the end of the stream
+    private static final class WatchedInputStream extends FilterInputStream {
+        private final long timeoutNanos;
+        private final ScheduledFuture<?> watch;
+        private long count = 0;
+        private volatile long lastRead = System.nanoTime();
+        private volatile boolean stalled = false;
+
+        private WatchedInputStream(InputStream in, Duration timeout) {
+            super(in);
+            timeoutNanos = timeout.toNanos();
+            long period = Math.max(timeout.toMillis() / 4, 10);
+            watch = watchdog.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        private void check() {
+            if (System.nanoTime() - lastRead > timeoutNanos) {
+                stalled = true;
+                watch.cancel(false);
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void checkStalled() throws IOException {
+            if (stalled) {
+                throw new IOException("No data received for " + (timeoutNanos / 1_000_000_000L) + " seconds");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                checkStalled();
+                throw e;
+            }
+            checkStalled();
+            lastRead = System.nanoTime();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read;
+            try {
+                read = super.read(buffer, offset, length);
+            } catch (IOException e) {
+                checkStalled();
+                throw e;
+            }
+            checkStalled();
+            lastRead = System.nanoTime();
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            watch.cancel(false);
+            super.close();
+        }
+    }
+
+}
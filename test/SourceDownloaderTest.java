@@ -0,0 +1,263 @@
+/*
+Copyright (c) 2015-2022 Divested Computing Group
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Runs the downloader against a local HttpServer standing in for the list hosts
+public class SourceDownloaderTest {
+
+    private static final String body = "0.0.0.0 ads.example.com\n0.0.0.0 tracker.example.net\n";
+
+    @TempDir
+    Path cache;
+    private HttpServer server;
+
+    @BeforeAll
+    static void setUp() {
+        Main.CACHE_ONLY = false;
+    }
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+        SourceDownloader.READ_TIMEOUT = Duration.ofSeconds(45);
+    }
+
+    private String serve(HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", handler);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    //Nothing but the cached file and its .meta may be left behind
+    private void assertNoTemporaryFiles() throws IOException {
+        try (var files = Files.list(cache)) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void storedETagIsRevalidated() throws IOException {
+        ArrayList<String> ifNoneMatch = new ArrayList<>();
+        String url = serve(exchange -> {
+            String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+            ifNoneMatch.add(String.valueOf(etag));
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            if ("\"v1\"".equals(etag)) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+            }
+            exchange.close();
+        });
+        Path out = cache.resolve("list.txt");
+
+        RunReport.Source first = new RunReport.Source(url);
+        SourceDownloader.download(url + "/list.txt", out, first);
+        assertEquals(200, first.httpStatus);
+        assertEquals(body, read(out));
+
+        RunReport.Source second = new RunReport.Source(url);
+        SourceDownloader.download(url + "/list.txt", out, second);
+        assertEquals(304, second.httpStatus);
+        assertEquals(body, read(out));
+        assertEquals(List.of("null", "\"v1\""), ifNoneMatch);
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    void gzipTransferIsStoredDecoded() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gzip = new GZIPOutputStream(compressed)) {
+            for (int line = 0; line < 1000; line++) {
+                gzip.write(("0.0.0.0 host" + line + ".example.com\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        ArrayList<String> acceptEncoding = new ArrayList<>();
+        String url = serve(exchange -> {
+            acceptEncoding.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, compressed.size());
+            exchange.getResponseBody().write(compressed.toByteArray());
+            exchange.close();
+        });
+        Path out = cache.resolve("list.txt");
+        RunReport.Source report = new RunReport.Source(url);
+        SourceDownloader.download(url + "/list.txt", out, report);
+
+        assertEquals(List.of("gzip"), acceptEncoding);
+        String stored = read(out);
+        assertTrue(stored.startsWith("0.0.0.0 host0.example.com\n"));
+        assertTrue(stored.endsWith("0.0.0.0 host999.example.com\n"));
+        assertEquals(stored.length(), report.downloadBytes);
+        assertEquals(compressed.size(), report.transferBytes);
+    }
+
+    @Test
+    void truncatedBodyKeepsCachedFile() throws IOException {
+        String url = serve(exchange -> {
+            exchange.sendResponseHeaders(200, 4096);
+            exchange.getResponseBody().write("0.0.0.0 partial.example.com\n".getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseBody().flush();
+            exchange.getHttpContext().getServer().stop(0); //Drops the connection before the promised length was sent
+        });
+        Path out = cache.resolve("list.txt");
+        Files.write(out, body.getBytes(StandardCharsets.UTF_8));
+        RunReport.Source report = new RunReport.Source(url);
+        SourceDownloader.download(url + "/list.txt", out, report);
+
+        assertNotNull(report.downloadError);
+        assertEquals(body, read(out));
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    void downloadsPerHostAreLimited() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger mostActive = new AtomicInteger();
+        String url = serve(exchange -> {
+            mostActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            active.decrementAndGet();
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        try {
+            SourceDownloader.HostLimiter limiter = new SourceDownloader.HostLimiter(pool, 2);
+            ArrayList<Future<RunReport.Source>> results = new ArrayList<>();
+            for (int list = 0; list < 6; list++) {
+                String listUrl = url + "/list" + list + ".txt";
+                Path out = cache.resolve("list" + list + ".txt");
+                results.add(limiter.submit(listUrl, () -> {
+                    RunReport.Source report = new RunReport.Source(listUrl);
+                    SourceDownloader.download(listUrl, out, report);
+                    return report;
+                }));
+            }
+            for (Future<RunReport.Source> result : results) {
+                assertEquals(200, result.get().httpStatus);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(2, mostActive.get());
+    }
+
+    @Test
+    void otherHostsAreNotHeldUp() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            SourceDownloader.HostLimiter limiter = new SourceDownloader.HostLimiter(pool, 1);
+            Future<String> first = limiter.submit("https://a.example/1.txt", () -> {
+                release.await();
+                throw new IOException("Failed");
+            });
+            Future<String> second = limiter.submit("https://a.example/2.txt", () -> "a");
+            //With the second download of a.example holding the other thread this would wait for the first one
+            Future<String> other = limiter.submit("https://b.example/1.txt", () -> "b");
+            assertEquals("b", other.get(5, TimeUnit.SECONDS));
+            assertFalse(second.isDone());
+
+            release.countDown();
+            assertThrows(ExecutionException.class, first::get);
+            //A failed download frees its slot for the next one of its host
+            assertEquals("a", second.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void stalledBodyTimesOut() throws IOException {
+        SourceDownloader.READ_TIMEOUT = Duration.ofSeconds(1);
+        String url = serve(exchange -> {
+            if (exchange.getRequestURI().getPath().equals("/stalled.txt")) {
+                exchange.sendResponseHeaders(200, 4096);
+                exchange.getResponseBody().write("0.0.0.0 a.com\n".getBytes(StandardCharsets.UTF_8));
+                exchange.getResponseBody().flush();
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+            }
+            exchange.close();
+        });
+        Path out = cache.resolve("stalled.txt");
+        Files.write(out, body.getBytes(StandardCharsets.UTF_8));
+
+        RunReport.Source report = new RunReport.Source(url);
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> SourceDownloader.download(url + "/stalled.txt", out, report));
+        assertTrue(report.downloadError.contains("No data received"), report.downloadError);
+        assertEquals(body, read(out));
+        assertNoTemporaryFiles();
+
+        RunReport.Source after = new RunReport.Source(url);
+        SourceDownloader.download(url + "/list.txt", cache.resolve("list.txt"), after);
+        assertEquals(200, after.httpStatus);
+    }
+
+}